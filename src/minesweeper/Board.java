@@ -1,11 +1,17 @@
 package minesweeper;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
-import javax.naming.spi.DirStateFactory.Result;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.OptionalLong;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 
 /**
  * TODO: Specification: Represents a minesweeper playing board, where each
@@ -17,47 +23,207 @@ import javax.naming.spi.DirStateFactory.Result;
  * untouched (meaning neither flagged nor dug up).
  * 
  */
-public class Board {
-
-    private final int[][] bombMap;
+public class Board implements GameBoard {
 
-    private final char[][] statusMap;
+    /*
+     * Packed cell layout, one byte per cell:
+     * 
+     * bit 7 = locked, bit 6 = mine, bits 5-4 = state (untouched, flagged or
+     * dug), bits 3-0 = the number of adjacent bombs. The count is computed once
+     * when the board is built and kept up to date as bombs are removed, so
+     * digging never has to look at the neighbors. The layout is shared with the
+     * board file readers and writers in this package.
+     * 
+     * The locked bit is set while a flag or deflag is changing the cell, and is
+     * never set in a copy of the cells.
+     */
+    static final int COUNT_MASK = 0x0F;
+    static final int STATE_MASK = 0x30;
+    static final int STATE_UNTOUCHED = 0x00;
+    static final int STATE_FLAGGED = 0x10;
+    static final int STATE_DUG = 0x20;
+    static final int MINE = 0x40;
+    static final int LOCKED = 0x80;
+
+    private final CellStore cells;
     private final int width;
     private final int height;
 
+    /* The seed the bombs were generated from, if the board is reproducible. */
+    private final OptionalLong seed;
+
+    /*
+     * Work queue of cell indices reused by every flood fill on the same thread,
+     * grown on demand. Each cell is enqueued at most once per dig because it is
+     * marked dug before it is enqueued, so the dug state doubles as the visited
+     * set.
+     */
+    private static class FillQueue {
+        private int[] items = new int[16];
+    }
+
+    private static final ThreadLocal<FillQueue> fillQueue = new ThreadLocal<FillQueue>() {
+        @Override
+        protected FillQueue initialValue() {
+            return new FillQueue();
+        }
+    };
+
+    /** System property giving the side length of the tiles a board is locked by. */
+    public static final String TILE_SIZE_PROPERTY = "minesweeper.board.tileSize";
+
+    private final TileLocks tiles;
+
+    /**
+     * System property naming where new boards keep their cells and rendering:
+     * "heap", the default, or "offheap" for native memory outside the Java heap,
+     * which release frees.
+     */
+    public static final String STORAGE_PROPERTY = "minesweeper.board.storage";
+
+    /*
+     * ASCII image of toString(), two bytes per cell, patched in place whenever a
+     * cell changes. version counts the successful dig, flag and deflag
+     * operations, and latest caches the most recent snapshot taken so that
+     * every look at the same version shares it.
+     * 
+     * writesStarted counts the successful operations that have begun changing
+     * cells, so writesStarted == version exactly when no operation is part way
+     * through. Readers use the pair like a StampedLock optimistic read: copy the
+     * rendering without any lock, then check that no operation started in the
+     * meantime.
+     */
+    private final CellStore rendering;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong writesStarted = new AtomicLong();
+
+    /*
+     * Successful digs started and finished, so that a deflag can tell whether an
+     * opening may be in progress.
+     */
+    private final AtomicLong digsStarted = new AtomicLong();
+    private final AtomicLong digsFinished = new AtomicLong();
+    private final AtomicReference<BoardSnapshot> latest = new AtomicReference<>();
+
+    /*
+     * Operations in progress on an off-heap board, which release waits for
+     * before freeing its stores, and whether it has been released.
+     */
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile boolean released = false;
+
+    /** Optimistic snapshot attempts before falling back to locking the board. */
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+    /** Approximate number of cells each parallel construction task works on. */
+    private static final int CELLS_PER_TASK = 1 << 16;
+
+    /** Spacing between the seeds of consecutive rows of a seeded board. */
+    private static final long ROW_SEED_GAMMA = 0x9E3779B97F4A7C15L;
+
     private final static char untouched = '-';
     private final static char flagged = 'F';
 
     private final static String title = "[0-9]+ [0-9]+";
 
+    /**
+     * How much of the rep invariant a board verifies after each operation, when
+     * assertions are enabled. OFF skips checking, INCREMENTAL checks only the
+     * locations an operation touched and their neighbors, and FULL checks every
+     * location on the board.
+     */
+    public enum CheckLevel {
+        OFF, INCREMENTAL, FULL
+    }
+
+    /** The kinds of operation that change a board. */
+    public enum Operation {
+        DIG, FLAG, DEFLAG
+    }
+
+    /**
+     * Observer of the successful operations on a board.
+     */
+    public interface Listener {
+        /**
+         * Called once for every successful dig, flag or deflag, while the
+         * operation still holds the part of the board it changed. Operations
+         * that conflict with each other are reported in version order, though
+         * calls from different threads may arrive out of version order. Must not
+         * block or call back into the board.
+         * 
+         * @param version the version of the board the operation produced
+         * @param op      the operation
+         * @param x       the x coordinate the operation was given
+         * @param y       the y coordinate the operation was given
+         */
+        void changed(long version, Operation op, int x, int y);
+    }
+
+    private volatile Listener listener;
+
+    /** System property naming the CheckLevel new boards start with. */
+    public static final String CHECK_LEVEL_PROPERTY = "minesweeper.board.check";
+
+    private static final boolean assertionsEnabled = Board.class.desiredAssertionStatus();
+
+    private volatile CheckLevel checkLevel = defaultCheckLevel();
+    private final AtomicLong checkCount = new AtomicLong();
+    private final AtomicLong checkNanos = new AtomicLong();
+
     // TODO: Abstraction function, rep invariant, rep exposure, thread safety
 
     /*
-     * Abstraction function: AF(bombMap) = the locations of all bombs in the current
-     * map, where the value 0 at bombMap[x][y] indicates that there is no bomb, and
-     * 1 at bombMap[x][y] indicates there is a bomb. AF(statusMap) = the status of
-     * the current gameplay board, where statusMap[x][y] = '-' indicates that the
-     * position is untouched, 'F' indicates flagged, and 'integer' indicates the
-     * position has been dug up and indicates the # of adjacent bombs. width = width
-     * of the map height = height of the map
-     * 
-     * Rep invariant: bombMap and statusMap are both not null and have same
-     * dimensions of width * height. Every value in bombMap is either 0 or 1. For
-     * every value of statusMap[x][y] that can be cast into an integer, (int)
-     * statusMap[x][y] = the number of adjacent neighboring squares that have a bomb
-     * in bombMap.
+     * Abstraction function: AF(cells) = the locations of all bombs and the status
+     * of the current gameplay board, where cells[y * width + x] describes location
+     * x,y. The MINE bit indicates there is a bomb at that location. The state bits
+     * indicate that the position is untouched, flagged, or dug up, and the count
+     * bits hold the # of adjacent bombs. width = width of the map height = height
+     * of the map
+     * 
+     * Rep invariant: cells is not null and has length width * height. No cell has
+     * bits set outside of LOCKED, MINE, STATE_MASK and COUNT_MASK, LOCKED is only
+     * set while a flag or deflag is changing the cell, and the state bits are
+     * never STATE_MASK. For every cell, the count bits = the number of adjacent
+     * neighboring squares that have a bomb. rendering has length 2 * width *
+     * height and rendering[renderIndex(x, y)] = render(x, y); the bytes between
+     * cells are spaces, with a newline at the end of every row. If latest holds a
+     * snapshot, its text is the rendering as of its version, which is <=
+     * version. writesStarted - version is the number of operations in progress,
+     * and is 0 whenever no tile is held and no cell is locked. digsStarted -
+     * digsFinished is the number of digs in progress.
      * 
      * Safety from rep exposure argument: width and height are all immutable data
      * types and references.
      * 
-     * bombMap and statusMap are immutable references, and they are never exposed in
-     * any public methods to clients. bombMap and statusMap are created from copies
-     * from the initial map input passed into the constructor, so no rep exposure
-     * here.
+     * cells is an immutable reference, and it is never exposed in any public
+     * methods to clients. cells is filled from a copy of the initial map input
+     * passed into the constructor, so no rep exposure here.
      * 
      * Thread Safety argument: width, height, untouched, and height are all
-     * immutable references and datatypes, while bombMap and statusMap are only
-     * accessed from synchronized methods.
+     * immutable references and datatypes. cells and rendering are final
+     * references to stores that are only freed once no operation uses them:
+     * every operation on an off-heap board counts itself in users while it
+     * runs, and release sets released before waiting for users to reach 0,
+     * so an operation either sees released and touches nothing or is waited
+     * for. A dig holds the tiles around the dug location, and before it
+     * changes anything also the tile of every location its opening will look
+     * at, found by exploring the opening first; if one of those is busy it lets
+     * go of everything and starts over. So a dig, the bomb it removes from its
+     * neighbors' counts and its opening are atomic. Flags hold no tile, and deflags only the tile
+     * of their location while a dig is in progress: every change to a cell is an
+     * atomic update, and a flag or deflag first locks its cell by setting LOCKED
+     * with a compare-and-set, which digs and flood fills wait for. So exactly
+     * one of several racing operations on a cell succeeds, each byte of
+     * rendering has one writer at a time, and operations on the same cell take
+     * their versions in the order they change it. Readers of status and
+     * snapshots do not lock: status reads a single byte after reading the
+     * volatile version, and an optimistic snapshot is only kept if
+     * writesStarted shows that no operation ran while it was copied; after a
+     * few failed attempts the snapshot is taken holding every tile, which only
+     * flags and deflags can then interfere with. version, digsStarted,
+     * digsFinished, users, checkCount and checkNanos are atomic, checkLevel
+     * and released are volatile, and each thread has its own fillQueue.
      * 
      */
 
@@ -73,10 +239,19 @@ public class Board {
      *             at the top-left hand corner.
      */
     public Board(int[][] map) {
-        bombMap = clone(map);
         height = map.length;
         width = map[0].length;
-        statusMap = initStatus();
+        seed = OptionalLong.empty();
+        cells = CellStore.allocate(width * height, offHeap());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (map[y][x] == 1)
+                    cells.set(index(x, y), (byte) MINE);
+            }
+        }
+        initCounts();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
         checkRep();
     }
 
@@ -92,20 +267,211 @@ public class Board {
 
         height = high;
         width = wide;
-        bombMap = new int[height][width];
+        seed = OptionalLong.empty();
+        cells = CellStore.allocate(width * height, offHeap());
 
-        for (int y = 0; y < height; y++) {
+        for (int i = 0; i < cells.length(); i++) {
+            double result = Math.random();
+            if (result < probabilityMine)
+                cells.set(i, (byte) MINE);
+        }
+
+        initCounts();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
+    }
+
+    /**
+     * Creates a new board with dimensions of wide by high, whose bombs are
+     * determined by seed: boards made with the same arguments are identical. Rows
+     * are generated in parallel, each from its own random stream derived from
+     * seed and the row number, so the result does not depend on how many threads
+     * take part.
+     * 
+     * @param wide,           must be greater than 0
+     * @param high,           must be greater than 0
+     * @param probabilityMine the probability of a bomb at each location in the
+     *                        board.
+     * @param seed            the seed the bomb locations are generated from
+     */
+    public Board(int wide, int high, double probabilityMine, long seed) {
+        height = high;
+        width = wide;
+        this.seed = OptionalLong.of(seed);
+        cells = CellStore.allocate(width * height, offHeap());
+
+        forEachRow(y -> {
+            SplittableRandom random = new SplittableRandom(seed + y * ROW_SEED_GAMMA);
             for (int x = 0; x < width; x++) {
-                double result = Math.random();
-                if (result < probabilityMine)
-                    bombMap[y][x] = 1;
-                else
-                    bombMap[y][x] = 0;
+                if (random.nextDouble() < probabilityMine)
+                    cells.set(index(x, y), (byte) MINE);
+            }
+        });
+
+        initCounts();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
+    }
+
+    /*
+     * Creates a board of wide by high from packed cells whose MINE and state bits
+     * are filled in and whose count bits are 0, which has already performed
+     * version successful operations. No cell may be both a mine and dug. The
+     * board takes ownership of cells, unless it copies them off the heap.
+     */
+    Board(int wide, int high, byte[] cells, OptionalLong seed, long version) {
+        height = high;
+        width = wide;
+        this.cells = CellStore.of(cells, offHeap());
+        this.seed = seed;
+        this.version.set(version);
+        writesStarted.set(version);
+
+        initCounts();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
+    }
+
+    /**
+     * Loads a board from a file, either in the textual format documented on
+     * MinesweeperServer.main or in the binary format written by save, which is
+     * recognized by its first bytes. The file is memory-mapped and the rows of a
+     * textual file are decoded in parallel.
+     * 
+     * @param file the board file
+     * @return the board stored in file, including which locations are flagged
+     *         and dug if the file records them
+     * @throws IOException              if file cannot be read
+     * @throws IllegalArgumentException if file is not in the right format, with a
+     *                                  message giving the line and column of the
+     *                                  problem for a textual file
+     */
+    public static Board load(File file) throws IOException {
+        if (BoardBinaryFormat.isBinary(file))
+            return BoardBinaryFormat.read(file);
+        return BoardFileLoader.load(file);
+    }
+
+    /**
+     * Saves this board to a file in a compact binary format that load reads back:
+     * one bit per location for the bombs, plus two bits per location recording
+     * whether it is untouched, flagged or dug if includeStatus is true. The seed
+     * the board was generated from, if any, is saved too.
+     * 
+     * The board is copied while holding every tile and no operation is part way
+     * through, so the file shows the board as of a single version, which is
+     * saved with it; the file itself is written and forced to the storage device
+     * after the locks are released.
+     * 
+     * @param file          the file to write, replaced if it exists
+     * @param includeStatus true to save the state of play as well as the bombs
+     * @return the version of the board that was saved
+     * @throws IOException if file cannot be written
+     */
+    public long save(File file, boolean includeStatus) throws IOException {
+        byte[] copy = new byte[width * height];
+        long saved = copyCells(copy);
+        BoardBinaryFormat.write(file, width, height, seed, saved, copy, includeStatus);
+        return saved;
+    }
+
+    /*
+     * Copies the packed cells into copy, which must have length width * height,
+     * while holding every tile and no operation is part way through, and returns
+     * the version copied. Flags and deflags hold no tile, so the copy is retried
+     * if one starts while it is taken; one that has only locked its cell has not
+     * changed it yet, so the locked bits are cleared from the copy.
+     */
+    long copyCells(byte[] copy) {
+        enter();
+        try {
+            while (true) {
+                tiles.lockAll();
+                try {
+                    long copied = version.get();
+                    if (writesStarted.get() == copied) {
+                        cells.copyTo(copy);
+                        VarHandle.acquireFence();
+                        if (writesStarted.get() == copied) {
+                            for (int i = 0; i < copy.length; i++)
+                                copy[i] &= ~LOCKED;
+                            return copied;
+                        }
+                    }
+                } finally {
+                    tiles.unlock();
+                }
+                Thread.yield();
             }
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     *
+     * @return the seed this board was generated from, or empty if it was not
+     *         generated from a seed
+     */
+    public OptionalLong getSeed() {
+        return seed;
+    }
+
+    /*
+     * Creates a board of wide by high with exactly mines bombs, drawn from random
+     * with Floyd's algorithm: the mine bits of cells serve as the set of chosen
+     * locations, so placing the bombs and counting their neighbors takes time
+     * proportional to mines rather than to the size of the board.
+     */
+    private Board(int wide, int high, int mines, SplittableRandom random, OptionalLong seed) {
+        height = high;
+        width = wide;
+        this.seed = seed;
+        if (wide <= 0 || high <= 0 || mines < 0 || mines > (long) wide * high)
+            throw new IllegalArgumentException("cannot place " + mines + " mines on a " + wide + "x" + high + " board");
+        cells = CellStore.allocate(width * height, offHeap());
+
+        for (int j = cells.length() - mines; j < cells.length(); j++) {
+            int chosen = random.nextInt(j + 1);
+            if ((cells.get(chosen) & MINE) != 0)
+                chosen = j;
+            cells.set(chosen, (byte) (cells.get(chosen) | MINE));
+            addToNeighborCounts(chosen % width, chosen / width, 1);
         }
 
-        statusMap = initStatus();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
+        checkRep();
+    }
 
+    /**
+     * Creates a new board with dimensions of wide by high and exactly mines bombs,
+     * every such board being equally likely.
+     * 
+     * @param wide,  must be greater than 0
+     * @param high,  must be greater than 0
+     * @param mines, the number of bombs, must be between 0 and wide * high
+     * @return the new board
+     * @throws IllegalArgumentException if mines is out of range
+     */
+    public static Board withMineCount(int wide, int high, int mines) {
+        return new Board(wide, high, mines, new SplittableRandom(), OptionalLong.empty());
+    }
+
+    /**
+     * Creates a new board with dimensions of wide by high and exactly mines bombs,
+     * whose locations are determined by seed: boards made with the same arguments
+     * are identical.
+     * 
+     * @param wide,  must be greater than 0
+     * @param high,  must be greater than 0
+     * @param mines, the number of bombs, must be between 0 and wide * high
+     * @param seed   the seed the bomb locations are generated from
+     * @return the new board
+     * @throws IllegalArgumentException if mines is out of range
+     */
+    public static Board withMineCount(int wide, int high, int mines, long seed) {
+        return new Board(wide, high, mines, new SplittableRandom(seed), OptionalLong.of(seed));
     }
 
     private static boolean matchesTitle(String s) {
@@ -136,7 +502,8 @@ public class Board {
 
     synchronized private void setBombMap(String line, int heightIndex) {
         for (int i = 0; i < width; i++) {
-            bombMap[heightIndex][i] = Integer.valueOf(line.substring(2 * i, 2 * i + 1));
+            if (line.charAt(2 * i) == '1')
+                cells.set(index(i, heightIndex), (byte) MINE);
         }
     }
 
@@ -148,6 +515,7 @@ public class Board {
      *               method throws a runtime exception.
      */
     public Board(BufferedReader reader) {
+        seed = OptionalLong.empty();
 
         String titleString = null;
 
@@ -167,7 +535,7 @@ public class Board {
         width = Integer.valueOf(result[0]); // Integer.valueOf(titleString.substring(widthIndex, widthIndex + 1));
         height = Integer.valueOf(result[1]);
 
-        bombMap = new int[height][width];
+        cells = CellStore.allocate(width * height, offHeap());
 
         for (int i = 0; i < height; i++) {
             String nextline = null;
@@ -196,55 +564,269 @@ public class Board {
             e.printStackTrace();
         }
 
-        statusMap = initStatus();
-        // printArray(bombMap);
-        // printArray(statusMap);
+        initCounts();
+        rendering = initRendering();
+        tiles = new TileLocks(width, height, tileSize(width, height));
+    }
+
+    /*
+     * Returns the tile size named by TILE_SIZE_PROPERTY, or a size that puts the
+     * whole board in one tile if the property is not a positive number.
+     */
+    private static int tileSize(int width, int height) {
+        int size = Integer.getInteger(TILE_SIZE_PROPERTY, 0);
+        return size > 0 ? size : Math.max(width, height);
+    }
 
+    /*
+     * Returns true if STORAGE_PROPERTY asks for off-heap storage.
+     */
+    private static boolean offHeap() {
+        String storage = System.getProperty(STORAGE_PROPERTY, "heap").trim();
+        if (storage.equalsIgnoreCase("offheap"))
+            return true;
+        if (storage.equalsIgnoreCase("heap"))
+            return false;
+        throw new IllegalArgumentException("unknown " + STORAGE_PROPERTY + ": \"" + storage + "\"");
     }
 
-    synchronized private void checkRep() {
-        assert bombMap.length == height && statusMap.length == height;
-        for (int y = 0; y < height; y++) {
-            assert bombMap[y].length == width && statusMap[y].length == width;
-            for (int x = 0; x < width; x++) {
-                assert bombMap[y][x] == 1 || bombMap[y][x] == 0;
+    private static CheckLevel defaultCheckLevel() {
+        String level = System.getProperty(CHECK_LEVEL_PROPERTY);
+        if (level == null)
+            return CheckLevel.FULL;
+        try {
+            return CheckLevel.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown " + CHECK_LEVEL_PROPERTY + ": \"" + level + "\"");
+        }
+    }
 
-                char c = statusMap[y][x];
-                if (c != untouched && c != flagged) {
-                    int expected = Integer.valueOf(String.valueOf(c));
-                    assert expected == countSurroundingBombs(x, y);
-                }
+    /*
+     * Checks the rep invariant over the whole board, unless checking is off.
+     */
+    private void checkRep() {
+        if (!assertionsEnabled || checkLevel == CheckLevel.OFF)
+            return;
+        long start = System.nanoTime();
+        tiles.lockAll();
+        try {
+            checkCells(0, 0, width, height);
+        } finally {
+            tiles.unlock();
+        }
+        recordCheck(start);
+    }
+
+    /*
+     * Checks the rep invariant after an operation that touched location x,y and
+     * the first filled entries of the thread's fillQueue, to the depth given by
+     * checkLevel. Must be called while still holding the tiles the operation
+     * used; a FULL check lets go of them and acquires every tile.
+     */
+    private void checkRep(int x, int y, int filled) {
+        if (!assertionsEnabled || checkLevel == CheckLevel.OFF)
+            return;
+        long start = System.nanoTime();
+        if (checkLevel == CheckLevel.FULL) {
+            tiles.unlock();
+            tiles.lockAll();
+            checkCells(0, 0, width, height);
+        } else {
+            int[] queue = fillQueue.get().items;
+            checkCells(x - 1, y - 1, x + 2, y + 2);
+            for (int k = 0; k < filled; k++) {
+                int cx = queue[k] % width;
+                int cy = queue[k] / width;
+                checkCells(cx - 1, cy - 1, cx + 2, cy + 2);
             }
         }
+        recordCheck(start);
+    }
 
+    /*
+     * Checks the rep invariant around location x,y after a flag or deflag, which
+     * holds no tile by then, so the tiles to check are taken here.
+     */
+    private void checkCell(int x, int y) {
+        CheckLevel level = checkLevel;
+        if (!assertionsEnabled || level == CheckLevel.OFF)
+            return;
+        long start = System.nanoTime();
+        if (level == CheckLevel.FULL)
+            tiles.lockAll();
+        else
+            tiles.lock(x, y);
+        try {
+            if (level == CheckLevel.FULL)
+                checkCells(0, 0, width, height);
+            else
+                checkCells(x - 1, y - 1, x + 2, y + 2);
+        } finally {
+            tiles.unlock();
+        }
+        recordCheck(start);
     }
 
-    private char[][] initStatus() {
-        char[][] result = new char[height][width];
+    /*
+     * Checks every cell with minX <= x < maxX and minY <= y < maxY that lies on
+     * the board and in a tile held by the calling thread, except those a flag or
+     * deflag is changing.
+     */
+    private void checkCells(int minX, int minY, int maxX, int maxY) {
+        assert cells.length() == width * height;
+        for (int y = Math.max(minY, 0); y < Math.min(maxY, height); y++) {
+            for (int x = Math.max(minX, 0); x < Math.min(maxX, width); x++) {
+                if (!tiles.holds(x, y))
+                    continue;
+                int cell = cells.getVolatile(index(x, y)) & 0xFF;
+                if ((cell & LOCKED) != 0)
+                    continue;
+                assert (cell & ~(MINE | STATE_MASK | COUNT_MASK)) == 0;
+
+                assert (cell & STATE_MASK) != STATE_MASK;
+                assert (cell & COUNT_MASK) == countSurroundingBombs(x, y);
+                assert rendering.get(renderIndex(x, y)) == render(x, y);
+            }
+        }
+    }
 
-        for (int x = 0; x < width; x++)
-            for (int y = 0; y < height; y++)
+    private void recordCheck(long start) {
+        checkNanos.addAndGet(System.nanoTime() - start);
+        checkCount.incrementAndGet();
+    }
 
-                result[y][x] = untouched;
+    /**
+     * Sets how much of the rep invariant this board verifies after each
+     * operation. Boards start at the level named by the CHECK_LEVEL_PROPERTY
+     * system property, or FULL if it is not set. Checking only happens when
+     * assertions are enabled.
+     * 
+     * @param level the new check level, must not be null
+     */
+    public void setCheckLevel(CheckLevel level) {
+        if (level == null)
+            throw new NullPointerException();
+        checkLevel = level;
+    }
 
-        return result;
+    /**
+     * 
+     * @return the current check level of this board
+     */
+    public CheckLevel getCheckLevel() {
+        return checkLevel;
+    }
+
+    /**
+     * 
+     * @return the number of rep invariant checks this board has run
+     */
+    public long getCheckCount() {
+        return checkCount.get();
+    }
+
+    /**
+     * 
+     * @return the total time this board has spent checking its rep invariant, in
+     *         nanoseconds
+     */
+    public long getCheckNanos() {
+        return checkNanos.get();
+    }
+
+    /*
+     * Fills in the count bits of every cell from the mine bits, rows in
+     * parallel. Each task only writes the count bits of its own rows, and
+     * rewrites the mine bits it reads with the values they already had.
+     */
+    private void initCounts() {
+        forEachRow(y -> {
+            for (int x = 0; x < width; x++) {
+                int i = index(x, y);
+                cells.set(i, (byte) ((cells.get(i) & ~COUNT_MASK) | countSurroundingBombs(x, y)));
+            }
+        });
+    }
+
+    /*
+     * Runs rowAction once for every row of the board, splitting the rows among
+     * the threads of the calling thread's fork-join pool, or of the common pool
+     * if the caller is not in one.
+     */
+    private void forEachRow(IntConsumer rowAction) {
+        int rowsPerTask = Math.max(1, CELLS_PER_TASK / width);
+        new RowTask(0, height, rowsPerTask, rowAction).invoke();
     }
 
-    private static int[][] clone(int[][] array) {
-        int rows = array.length;
-        int cols = array[0].length;
-        int[][] result = new int[rows][cols];
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        for (int x = 0; x < rows; x++) {
+        private final int fromRow;
+        private final int toRow;
+        private final int rowsPerTask;
+        private final IntConsumer rowAction;
+
+        RowTask(int fromRow, int toRow, int rowsPerTask, IntConsumer rowAction) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.rowsPerTask = rowsPerTask;
+            this.rowAction = rowAction;
+        }
 
-            for (int y = 0; y < cols; y++) {
-                result[x][y] = array[x][y];
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= rowsPerTask) {
+                for (int y = fromRow; y < toRow; y++)
+                    rowAction.accept(y);
+            } else {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new RowTask(fromRow, middle, rowsPerTask, rowAction),
+                        new RowTask(middle, toRow, rowsPerTask, rowAction));
             }
+        }
+    }
 
+    private void addToNeighborCounts(int x, int y, int delta) {
+        int maxWide = Math.min(x + 2, width);
+        int maxHigh = Math.min(y + 2, height);
+        for (int i = Math.max(x - 1, 0); i < maxWide; i++) {
+            for (int j = Math.max(y - 1, 0); j < maxHigh; j++) {
+                if (i != x || j != y) {
+                    byte cell = cells.addAndGet(index(i, j), delta);
+                    if ((cell & STATE_MASK) == STATE_DUG)
+                        rendering.set(renderIndex(i, j), render(i, j));
+                }
+            }
         }
+    }
+
+    private int index(int x, int y) {
+        return y * width + x;
+    }
+
+    private CellStore initRendering() {
+        CellStore result = CellStore.allocate(2 * width * height, offHeap());
+        forEachRow(y -> {
+            for (int x = 0; x < width; x++) {
+                result.set(renderIndex(x, y), render(x, y));
+                result.set(renderIndex(x, y) + 1, (byte) (x < width - 1 ? ' ' : '\n'));
+            }
+        });
         return result;
     }
 
+    private int renderIndex(int x, int y) {
+        return 2 * index(x, y);
+    }
+
+    /*
+     * Returns the character toString() shows for location x,y.
+     */
+    private byte render(int x, int y) {
+        char c = statusOf(cells.get(index(x, y)));
+        return (byte) (c != '0' ? c : ' ');
+    }
+
     /**
      * Digs at the specified x,y location of the board only if location is
      * untouched.
@@ -259,75 +841,187 @@ public class Board {
      *         at the current location and we update the neighboring counts to
      *         reflect this update. If one digs the location and no neighboring
      *         squares have bombs, recursively dig on untouched neighbors.
+     *         The recursion is carried out iteratively, so large openings
+     *         cannot overflow the stack.
      * 
      */
-    synchronized public boolean dig(int x, int y) {
+    public boolean dig(int x, int y) {
         assert inbounds(x, y);
 
-        if (status(x, y) != untouched)
-            return false;
-
-        boolean result = false;
-        if (hasBomb(x, y)) {
-            setNoBomb(x, y);
-            result = true;
+        enter();
+        digsStarted.incrementAndGet();
+        try {
+            int[] retry = null;
+            while (true) {
+                if (retry == null)
+                    tiles.lockRegion(x - 1, y - 1, x + 1, y + 1);
+                else
+                    tiles.lockTiles(retry);
+                try {
+                    int busy = acquireOpening(x, y);
+                    if (busy >= 0) {
+                        retry = tiles.heldWith(busy % width, busy / width);
+                        continue;
+                    }
+
+                    byte before = claim(index(x, y), MINE);
+                    if (before < 0)
+                        return false;
+
+                    writesStarted.incrementAndGet();
+                    boolean result = false;
+                    if ((before & MINE) != 0) {
+                        addToNeighborCounts(x, y, -1);
+                        result = true;
+                    }
+                    int filled = floodFill(x, y);
+                    changed(version.incrementAndGet(), Operation.DIG, x, y);
+                    checkRep(x, y, filled);
+                    return result;
+                } finally {
+                    tiles.unlock();
+                }
+            }
+        } finally {
+            digsFinished.incrementAndGet();
+            exit();
         }
-        int bombNeighbors = countSurroundingBombs(x, y);
-        setStatus(x, y, Character.forDigit(bombNeighbors, 10));
+    }
 
-        if (bombNeighbors == 0) {
-            for (int[] adj : getAdjacent(x, y)) {
-                dig(adj[0], adj[1]);
+    /*
+     * Acquires the tile of every location that digging the location x,y would
+     * look at, without changing anything, given that the calling thread holds
+     * the tiles around x,y. Returns -1 once it holds them all, or the index of
+     * a location whose tile another thread holds and which could not be taken
+     * without risking deadlock, in which case the caller must let go of every
+     * tile and try again. Since no other dig can change a location in a held
+     * tile and no deflag can while a dig is in progress, the opening found here
+     * is the one floodFill reveals, less any locations flagged meanwhile.
+     */
+    private int acquireOpening(int x, int y) {
+        byte start = cells.getVolatile(index(x, y));
+        if ((start & COUNT_MASK) != 0 || (start & STATE_MASK) != STATE_UNTOUCHED)
+            return -1;
+        boolean bomb = (start & MINE) != 0;
+
+        FillQueue queue = fillQueue.get();
+        int[] fillQueue = queue.items;
+        CellSet visited = new CellSet();
+        visited.add(index(x, y));
+        fillQueue[0] = index(x, y);
+        int tail = 1;
+        for (int head = 0; head < tail; head++) {
+            int i = fillQueue[head];
+            int cx = i % width;
+            int cy = i / width;
+            int maxWide = Math.min(cx + 2, width);
+            int maxHigh = Math.min(cy + 2, height);
+            for (int nx = Math.max(cx - 1, 0); nx < maxWide; nx++) {
+                for (int ny = Math.max(cy - 1, 0); ny < maxHigh; ny++) {
+                    int n = index(nx, ny);
+                    if (!tiles.tryLock(nx, ny))
+                        return n;
+                    if (!visited.add(n))
+                        continue;
+                    byte cell;
+                    while (((cell = cells.getVolatile(n)) & LOCKED) != 0)
+                        Thread.onSpinWait();
+                    int count = cell & COUNT_MASK;
+                    if (bomb && Math.abs(nx - x) <= 1 && Math.abs(ny - y) <= 1)
+                        count--;
+                    if ((cell & STATE_MASK) == STATE_UNTOUCHED && count == 0) {
+                        if (tail == fillQueue.length) {
+                            fillQueue = Arrays.copyOf(fillQueue, Math.min(tail * 2, cells.length()));
+                            queue.items = fillQueue;
+                        }
+                        fillQueue[tail++] = n;
+                    }
+                }
             }
         }
-        checkRep();
-        return result;
+        return -1;
     }
 
-    synchronized private int countSurroundingBombs(int x, int y) {
-        int counter = 0;
-        for (int[] coords : getAdjacent(x, y)) {
-            int wide = coords[0];
-            int high = coords[1];
-
-            if (hasBomb(wide, high))
-                counter++;
-
+    /*
+     * Atomically changes the untouched cell i to dug, also clearing the bits in
+     * clear, and returns the cell as it was before, or -1 if it was not
+     * untouched. Waits for any flag or deflag changing the cell to finish, so
+     * that the operations on a cell take effect in version order. Requires the
+     * tile of cell i.
+     */
+    private byte claim(int i, int clear) {
+        while (true) {
+            byte before = cells.getVolatile(i);
+            if ((before & LOCKED) != 0) {
+                Thread.onSpinWait();
+            } else if ((before & STATE_MASK) != STATE_UNTOUCHED) {
+                return -1;
+            } else if (cells.compareAndSet(i, before, (byte) ((before & ~clear) | STATE_DUG))) {
+                return before;
+            }
         }
-        return counter;
     }
 
-    private List<int[]> getAdjacent(int x, int y) {
-        int maxWide = x + 1 < width ? x + 2 : width;
-        int maxHigh = y + 1 < height ? y + 2 : height;
-
-        List<int[]> result = new ArrayList<>();
-        for (int i = x - 1 >= 0 ? x - 1 : 0; i < maxWide; i++) {
-            for (int j = y - 1 >= 0 ? y - 1 : 0; j < maxHigh; j++) {
-                if (i != x || j != y)
-                    result.add(new int[] { i, j });
+    /*
+     * Reveals the just dug location x,y and every untouched location reachable
+     * from it through dug locations with no neighboring bombs. Returns the number
+     * of entries at the front of the thread's fillQueue, which are the revealed
+     * locations with no neighboring bombs. Requires the tile of every location
+     * it looks at, as acquired by acquireOpening.
+     */
+    private int floodFill(int x, int y) {
+        FillQueue queue = fillQueue.get();
+        int[] fillQueue = queue.items;
+        int tail = 0;
+        if (reveal(x, y))
+            fillQueue[tail++] = index(x, y);
+
+        for (int head = 0; head < tail; head++) {
+            int i = fillQueue[head];
+            int cx = i % width;
+            int cy = i / width;
+            int maxWide = Math.min(cx + 2, width);
+            int maxHigh = Math.min(cy + 2, height);
+            for (int nx = Math.max(cx - 1, 0); nx < maxWide; nx++) {
+                for (int ny = Math.max(cy - 1, 0); ny < maxHigh; ny++) {
+                    assert tiles.holds(nx, ny);
+                    if (claim(index(nx, ny), 0) >= 0 && reveal(nx, ny)) {
+                        if (tail == fillQueue.length) {
+                            fillQueue = Arrays.copyOf(fillQueue, Math.min(tail * 2, cells.length()));
+                            queue.items = fillQueue;
+                        }
+                        fillQueue[tail++] = index(nx, ny);
+                    }
+                }
             }
         }
-
-        return result;
+        return tail;
     }
 
-    synchronized private boolean hasBomb(int x, int y) {
-        return bombMap[y][x] == 1;
+    /*
+     * Shows the just dug location x,y in the rendering, returning true if it has
+     * no neighboring bombs.
+     */
+    private boolean reveal(int x, int y) {
+        rendering.set(renderIndex(x, y), render(x, y));
+        return (cells.get(index(x, y)) & COUNT_MASK) == 0;
     }
 
-    synchronized private void setNoBomb(int x, int y) {
-        bombMap[y][x] = 0;
-        for (int[] coords : getAdjacent(x, y)) {
-            char current = status(coords[0], coords[1]);
-            if (!(current == untouched || current == flagged))
-
-                setStatus(coords[0], coords[1], (char) (current - 1));
+    private int countSurroundingBombs(int x, int y) {
+        int counter = 0;
+        int maxWide = Math.min(x + 2, width);
+        int maxHigh = Math.min(y + 2, height);
+        for (int i = Math.max(x - 1, 0); i < maxWide; i++) {
+            for (int j = Math.max(y - 1, 0); j < maxHigh; j++) {
+                if ((i != x || j != y) && hasBomb(i, j))
+                    counter++;
+            }
         }
+        return counter;
     }
 
-    synchronized private void setStatus(int x, int y, char c) {
-        statusMap[y][x] = c;
+    private boolean hasBomb(int x, int y) {
+        return (cells.get(index(x, y)) & MINE) != 0;
     }
 
     /**
@@ -341,14 +1035,19 @@ public class Board {
      *         Only marks the location as flagged if the x,y location was untouched
      *         before calling this method.
      */
-    synchronized public boolean flag(int x, int y) {
+    public boolean flag(int x, int y) {
         assert inbounds(x, y);
-        if (status(x, y) != untouched)
-            return false;
-
-        setStatus(x, y, flagged);
-        checkRep();
-        return true;
+        int i = index(x, y);
+        enter();
+        try {
+            if (!lockCell(i, STATE_UNTOUCHED))
+                return false;
+            changeState(x, y, STATE_FLAGGED, Operation.FLAG);
+            checkCell(x, y);
+            return true;
+        } finally {
+            exit();
+        }
     }
 
     /**
@@ -361,40 +1060,223 @@ public class Board {
      *         Only removes the flag from the location if the location was in a
      *         flagged state, upon which the location turns into an untouched state.
      */
-    synchronized public boolean deflag(int x, int y) {
+    public boolean deflag(int x, int y) {
         assert inbounds(x, y);
-        if (status(x, y) != flagged)
-            return false;
-        setStatus(x, y, untouched);
+        int i = index(x, y);
+        enter();
+        try {
+            long digs = digsStarted.get();
+            if (digs == digsFinished.get()) {
+                if (!lockCell(i, STATE_FLAGGED))
+                    return false;
+                if (digsStarted.get() == digs) {
+                    changeState(x, y, STATE_UNTOUCHED, Operation.DEFLAG);
+                    checkCell(x, y);
+                    return true;
+                }
+                unlockCell(i);
+            }
 
-        checkRep();
+            tiles.lock(x, y);
+            try {
+                if (!lockCell(i, STATE_FLAGGED))
+                    return false;
+                changeState(x, y, STATE_UNTOUCHED, Operation.DEFLAG);
+            } finally {
+                tiles.unlock();
+            }
+            checkCell(x, y);
+            return true;
+        } finally {
+            exit();
+        }
+    }
+
+    /*
+     * Sets the locked bit of cell i if its state is from, waiting for any other
+     * flag or deflag of the cell to finish, and returns true if it did. Setting
+     * the bit with a compare-and-set decides which of several racing operations
+     * on the cell succeeds, and keeps the cell from changing until that
+     * operation has taken its version.
+     * 
+     * A flag needs no tile: an opening that finds a flag skips it whenever the
+     * flag was placed. A deflag can make its location part of an opening in
+     * progress, which must then either reveal it or take an earlier version than
+     * the deflag. So a deflag only goes ahead without a tile if no dig started
+     * before it locked its cell and was still in progress; otherwise it holds the
+     * tile of its location, which an opening holds from when it looks at the
+     * location until it takes its version.
+     */
+    private boolean lockCell(int i, int from) {
+        byte before;
+        do {
+            before = cells.getVolatile(i);
+            if ((before & LOCKED) != 0)
+                Thread.onSpinWait();
+            else if ((before & STATE_MASK) != from)
+                return false;
+        } while ((before & LOCKED) != 0 || !cells.compareAndSet(i, before, (byte) (before | LOCKED)));
         return true;
     }
 
-    synchronized public String toString() {
-        StringBuilder result = new StringBuilder();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                char c = status(x, y);
-                if (c != '0') {
-                    result.append(c);
-                } else {
-                    result.append(' ');
+    private void unlockCell(int i) {
+        byte before;
+        do {
+            before = cells.getVolatile(i);
+        } while (!cells.compareAndSet(i, before, (byte) (before & ~LOCKED)));
+    }
+
+    /*
+     * Changes the state of location x,y, whose cell this thread has locked, to
+     * state to, and unlocks it. Only the count bits of a locked cell can change,
+     * so the state is set with a compare-and-set.
+     */
+    private void changeState(int x, int y, int to, Operation op) {
+        int i = index(x, y);
+        writesStarted.incrementAndGet();
+        byte before;
+        do {
+            before = cells.getVolatile(i);
+        } while (!cells.compareAndSet(i, before, (byte) ((before & ~STATE_MASK) | to)));
+        rendering.set(renderIndex(x, y), render(x, y));
+        changed(version.incrementAndGet(), op, x, y);
+        unlockCell(i);
+    }
+
+    private void changed(long version, Operation op, int x, int y) {
+        Listener current = listener;
+        if (current != null)
+            current.changed(version, op, x, y);
+    }
+
+    /**
+     * Sets the listener told about every later successful operation on this
+     * board, replacing any previous one.
+     * 
+     * @param listener the new listener, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the board in the format of the look command. Does not block
+     * operations on the board unless they keep interfering with it.
+     */
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Takes a consistent snapshot of this board. Snapshots of the same version
+     * are shared, so repeated calls on an unchanged board do no copying.
+     * 
+     * @return a snapshot of this board as of some version at least as recent as
+     *         every operation that completed before this call
+     */
+    public BoardSnapshot snapshot() {
+        enter();
+        try {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                long current = version.get();
+                BoardSnapshot cached = latest.get();
+                if (cached != null && cached.getVersion() == current)
+                    return cached;
+
+                long stamp = writesStarted.get();
+                if (stamp == current) {
+                    String text = rendering.toAsciiString();
+                    VarHandle.acquireFence();
+                    if (writesStarted.get() == stamp)
+                        return publish(new BoardSnapshot(current, width, height, text));
                 }
-                if (x < width - 1) {
-                    result.append(' ');
+                Thread.yield();
+            }
+
+            tiles.lockAll();
+            try {
+                while (true) {
+                    long current = version.get();
+                    if (writesStarted.get() == current) {
+                        String text = rendering.toAsciiString();
+                        VarHandle.acquireFence();
+                        if (writesStarted.get() == current)
+                            return publish(new BoardSnapshot(current, width, height, text));
+                    }
+                    Thread.yield();
                 }
+            } finally {
+                tiles.unlock();
             }
-            result.append('\n');
+        } finally {
+            exit();
         }
-        return result.toString();
+    }
+
+    /*
+     * Makes snapshot the cached one unless a newer one is cached already, and
+     * returns it.
+     */
+    private BoardSnapshot publish(BoardSnapshot snapshot) {
+        BoardSnapshot cached = latest.get();
+        while ((cached == null || cached.getVersion() < snapshot.getVersion())
+                && !latest.compareAndSet(cached, snapshot)) {
+            cached = latest.get();
+        }
+        return snapshot;
+    }
+
+    /**
+     * 
+     * @return the number of successful dig, flag and deflag operations performed
+     *         on this board so far, counting those performed before it was saved
+     *         if it was loaded from a binary board file
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Frees this board's storage when the game on it has ended, at once if it is
+     * off the heap, after waiting for the operations in progress to finish. The
+     * board must not be used afterwards: digging, flagging, deflagging, taking a
+     * snapshot or reading the status of a location then throws
+     * IllegalStateException instead of touching freed memory.
+     */
+    @Override
+    public void release() {
+        released = true;
+        while (users.get() != 0)
+            Thread.yield();
+        cells.release();
+        rendering.release();
+    }
+
+    /*
+     * Counts an operation as using the stores until exit, or throws
+     * IllegalStateException if the board has been released. Only off-heap
+     * stores are counted: the garbage collector keeps a heap store alive for
+     * as long as anyone reads it.
+     */
+    private void enter() {
+        if (cells.isOffHeap())
+            users.incrementAndGet();
+        if (released) {
+            exit();
+            throw new IllegalStateException("board has been released");
+        }
+    }
+
+    private void exit() {
+        if (cells.isOffHeap())
+            users.decrementAndGet();
     }
 
     /**
      * 
      * @return the width of this board
      */
-    synchronized public int getWidth() {
+    public int getWidth() {
         return width;
     }
 
@@ -402,7 +1284,7 @@ public class Board {
      * 
      * @return the height of this board
      */
-    synchronized public int getHeight() {
+    public int getHeight() {
         return height;
     }
 
@@ -412,7 +1294,7 @@ public class Board {
      * @param y
      * @return true if x and y are valid coordinates in the board, false otherwise
      */
-    synchronized public boolean inbounds(int x, int y) {
+    public boolean inbounds(int x, int y) {
         if (0 <= x && x < getWidth() && y >= 0 && y < getHeight())
             return true;
         return false;
@@ -427,44 +1309,35 @@ public class Board {
      *         state is dug w/ 0 neighbors that have a bomb, otherwise 'integer' for
      *         state w/
      */
-    synchronized public char status(int x, int y) {
-        return statusMap[y][x];
-    }
-
-    static private void printArray(int[][] array) {
-        for (int x = 0; x < array.length; x++) {
-            for (int y = 0; y < array[x].length; y++) {
-                System.out.print(array[x][y] + " ");
-            }
-            System.out.println(" ");
+    public char status(int x, int y) {
+        enter();
+        try {
+            version.get(); // volatile read, so every completed operation is visible
+            return statusOf(cells.get(index(x, y)));
+        } finally {
+            exit();
         }
     }
 
-    static private void printArray(char[][] array) {
-        for (int x = 0; x < array.length; x++) {
-            for (int y = 0; y < array[x].length; y++) {
-                System.out.print(array[x][y] + " ");
-            }
-            System.out.println(" ");
+    static char statusOf(int cell) {
+        switch (cell & STATE_MASK) {
+        case STATE_UNTOUCHED:
+            return untouched;
+        case STATE_FLAGGED:
+            return flagged;
+        default:
+            return Character.forDigit(cell & COUNT_MASK, 10);
         }
     }
 
     static public void main(String args[]) {
-        int[][] toCopy = { { 1, 0, 1 }, { 0, 0, 1 } };
-
-        int[][] copied = clone(toCopy);
-
-        toCopy[0][0] = 100;
-        printArray(toCopy);
-        printArray(copied);
-
-        assert toCopy[0][0] == 100;
-        assert copied[0][0] != 100;
+        int[][] map = { { 1, 0, 1 }, { 0, 0, 1 } };
 
-        Board board = new Board(copied);
+        Board board = new Board(map);
+        map[0][0] = 100;
 
-        printArray(board.bombMap);
-        printArray(board.statusMap);
+        assert board.dig(0, 0);
+        System.out.print(board);
 
     }
 
@@ -0,0 +1,240 @@
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.OptionalLong;
+
+/**
+ * Reads and writes the binary board file format, which stores a board in about
+ * one bit per location, or three with the status layer. All numbers are
+ * big-endian:
+ *
+ * <pre>
+ *   FILE ::= MAGIC FORMAT FLAGS WIDTH HEIGHT SEED? VERSION MINES STATUS?
+ *   MAGIC ::= "MSWB"
+ *   FORMAT ::= the byte 2
+ *   FLAGS ::= a byte; bit 0 set if SEED is present, bit 1 set if STATUS is,
+ *             and the other bits clear
+ *   WIDTH ::= 4-byte integer &gt; 0
+ *   HEIGHT ::= 4-byte integer &gt; 0
+ *   SEED ::= 8-byte integer
+ *   VERSION ::= 8-byte integer &gt;= 0, the board's version when it was saved
+ *   MINES ::= ceil(WIDTH*HEIGHT / 8) bytes; bit (i % 8) of byte i / 8 is set if
+ *             location i = y*WIDTH+x has a bomb
+ *   STATUS ::= ceil(WIDTH*HEIGHT / 4) bytes; bits 2*(i % 4) and up of byte i / 4
+ *              hold 0 if location i is untouched, 1 if flagged, 2 if dug
+ * </pre>
+ *
+ * Neighbor counts are not stored; they are recomputed from MINES on load.
+ * Files in format 1, which is the same but without VERSION, are still read, as
+ * boards at version 0. Files with any other FORMAT, or with flag bits this
+ * reader does not know, are rejected rather than misread.
+ */
+class BoardBinaryFormat {
+
+    /** The first bytes of every binary board file. */
+    static final byte[] MAGIC = { 'M', 'S', 'W', 'B' };
+
+    private static final byte FORMAT = 2;
+    /** The format before VERSION was added. */
+    private static final byte UNVERSIONED_FORMAT = 1;
+    private static final int HAS_SEED = 0x01;
+    private static final int HAS_STATUS = 0x02;
+    private static final int KNOWN_FLAGS = HAS_SEED | HAS_STATUS;
+    private static final int HEADER_BYTES = MAGIC.length + 2 + 4 + 4;
+
+    private static final int STATUS_UNTOUCHED = 0;
+    private static final int STATUS_FLAGGED = 1;
+    private static final int STATUS_DUG = 2;
+
+    /** Size of the buffer the layers are written through. */
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    /*
+     * BoardBinaryFormat has no instances; it only groups the static methods that
+     * read and write the format.
+     */
+    private BoardBinaryFormat() {
+    }
+
+    /**
+     *
+     * @param file a file
+     * @return true if file starts with MAGIC
+     * @throws IOException if file cannot be read
+     */
+    static boolean isBinary(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(MAGIC.length);
+            while (start.hasRemaining() && channel.read(start) >= 0) {
+            }
+            return !start.hasRemaining() && ByteBuffer.wrap(MAGIC).equals(start.flip());
+        }
+    }
+
+    /**
+     * Writes a board to file in the binary format, replacing its contents.
+     *
+     * @param file          the file to write
+     * @param width         width of the board
+     * @param height        height of the board
+     * @param seed          the seed of the board, if known
+     * @param version       the version of the board
+     * @param cells         the board's packed cells, which must not change while
+     *                      this method runs
+     * @param includeStatus true to store the status layer
+     * @throws IOException if file cannot be written
+     */
+    static void write(File file, int width, int height, OptionalLong seed, long version, byte[] cells,
+            boolean includeStatus) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            out.put(MAGIC).put(FORMAT);
+            out.put((byte) ((seed.isPresent() ? HAS_SEED : 0) | (includeStatus ? HAS_STATUS : 0)));
+            out.putInt(width).putInt(height);
+            if (seed.isPresent())
+                out.putLong(seed.getAsLong());
+            out.putLong(version);
+
+            for (int i = 0; i < cells.length; i += 8) {
+                int bits = 0;
+                for (int k = 0; k < 8 && i + k < cells.length; k++) {
+                    if ((cells[i + k] & Board.MINE) != 0)
+                        bits |= 1 << k;
+                }
+                out = put(channel, out, (byte) bits);
+            }
+
+            if (includeStatus) {
+                for (int i = 0; i < cells.length; i += 4) {
+                    int bits = 0;
+                    for (int k = 0; k < 4 && i + k < cells.length; k++)
+                        bits |= statusCode(cells[i + k]) << (2 * k);
+                    out = put(channel, out, (byte) bits);
+                }
+            }
+            flush(channel, out);
+            channel.force(true);
+        }
+    }
+
+    private static int statusCode(byte cell) {
+        switch (cell & Board.STATE_MASK) {
+        case Board.STATE_FLAGGED:
+            return STATUS_FLAGGED;
+        case Board.STATE_DUG:
+            return STATUS_DUG;
+        default:
+            return STATUS_UNTOUCHED;
+        }
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer out, byte b) throws IOException {
+        if (!out.hasRemaining())
+            flush(channel, out);
+        return out.put(b);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+    }
+
+    /**
+     * Loads a board from a file in the binary format.
+     *
+     * @param file the board file
+     * @return the board stored in file, at the version it was saved at, or 0 if
+     *         the file does not record it
+     * @throws IOException              if file cannot be read
+     * @throws IllegalArgumentException if file is not a valid binary board file
+     */
+    static Board read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IllegalArgumentException(file + ": truncated binary board header");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + ": board file too large (" + size + " bytes)");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!ByteBuffer.wrap(MAGIC).equals(ByteBuffer.wrap(magic))) {
+                throw new IllegalArgumentException(file + ": not a binary board file");
+            }
+            byte format = in.get();
+            if (format != FORMAT && format != UNVERSIONED_FORMAT) {
+                throw new IllegalArgumentException(file + ": unsupported binary board format " + format);
+            }
+            boolean hasVersion = format == FORMAT;
+            int flags = in.get();
+            if ((flags & ~KNOWN_FLAGS) != 0) {
+                throw new IllegalArgumentException(file + ": unsupported binary board flags " + flags);
+            }
+            int width = in.getInt();
+            int height = in.getInt();
+            if (width <= 0 || height <= 0 || (long) width * height * 2 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + ": bad board dimensions " + width + "x" + height);
+            }
+            int cellCount = width * height;
+            long expected = HEADER_BYTES + ((flags & HAS_SEED) != 0 ? 8 : 0) + (hasVersion ? 8 : 0)
+                    + (cellCount + 7) / 8
+                    + ((flags & HAS_STATUS) != 0 ? (cellCount + 3) / 4 : 0);
+            if (size != expected) {
+                throw new IllegalArgumentException(
+                        file + ": expected " + expected + " bytes for a " + width + "x" + height + " board, found " + size);
+            }
+            OptionalLong seed = (flags & HAS_SEED) != 0 ? OptionalLong.of(in.getLong()) : OptionalLong.empty();
+            long version = hasVersion ? in.getLong() : 0;
+            if (version < 0) {
+                throw new IllegalArgumentException(file + ": bad board version " + version);
+            }
+
+            byte[] cells = new byte[cellCount];
+            for (int i = 0; i < cellCount; i += 8) {
+                int bits = in.get();
+                for (int k = 0; k < 8 && i + k < cellCount; k++) {
+                    if ((bits & (1 << k)) != 0)
+                        cells[i + k] = Board.MINE;
+                }
+            }
+
+            if ((flags & HAS_STATUS) != 0) {
+                for (int i = 0; i < cellCount; i += 4) {
+                    int bits = in.get();
+                    for (int k = 0; k < 4 && i + k < cellCount; k++)
+                        cells[i + k] |= stateBits((bits >> (2 * k)) & 0x3, cells[i + k], i + k, width, file);
+                }
+            }
+            return new Board(width, height, cells, seed, version);
+        }
+    }
+
+    private static int stateBits(int status, byte cell, int i, int width, File file) {
+        switch (status) {
+        case STATUS_UNTOUCHED:
+            return Board.STATE_UNTOUCHED;
+        case STATUS_FLAGGED:
+            return Board.STATE_FLAGGED;
+        case STATUS_DUG:
+            if ((cell & Board.MINE) != 0) {
+                throw new IllegalArgumentException(
+                        file + ": location " + i % width + "," + i / width + " is dug but has a bomb");
+            }
+            return Board.STATE_DUG;
+        default:
+            throw new IllegalArgumentException(
+                    file + ": bad status at location " + i % width + "," + i / width);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.OptionalLong;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the textual board file format documented on MinesweeperServer.main
+ * straight from a memory-mapped file:
+ *
+ * <pre>
+ *   FILE ::= BOARD LINE+
+ *   BOARD ::= X SPACE Y NEWLINE
+ *   LINE ::= (VAL SPACE)* VAL NEWLINE
+ *   VAL ::= 0 | 1
+ *   X ::= INT
+ *   Y ::= INT
+ *   SPACE ::= " "
+ *   NEWLINE ::= "\n" | "\r" "\n"?
+ *   INT ::= [0-9]+
+ * </pre>
+ *
+ * Like Board(BufferedReader), the final NEWLINE may be left out.
+ *
+ * The rows are split into chunks of the file that are decoded in parallel: a
+ * first pass counts the lines starting in each chunk, so that the second pass
+ * knows which row each of its lines is. Errors are reported with the line and
+ * column of the first offending character in the file.
+ */
+class BoardFileLoader {
+
+    /** Approximate number of bytes of the file each parallel task decodes. */
+    private static final int BYTES_PER_CHUNK = 1 << 20;
+
+    private final MappedByteBuffer buffer;
+    private final int end;
+    private final int width;
+    private final int height;
+    private final int bodyStart;
+    private final byte[] mines;
+
+    /*
+     * Abstraction function: AF(buffer, end) = the contents of the board file,
+     * which are buffer[0..end). The header declares a board of width by height,
+     * whose rows start at bodyStart. mines[y * width + x] = Board.MINE if the file
+     * places a bomb at x,y and 0 otherwise, once the rows have been decoded.
+     *
+     * Rep invariant: width > 0, height > 0, 0 < bodyStart <= end, and
+     * mines.length = width * height.
+     *
+     * Safety from rep exposure argument: the loader is only used within load,
+     * which hands mines over to the new board and drops the loader.
+     *
+     * Thread safety argument: the decoding tasks only read buffer, which is
+     * never modified, and write disjoint rows of mines. Absolute gets on a
+     * ByteBuffer do not touch its position, so the tasks can share it.
+     */
+
+    /**
+     * Loads a board from a file in the textual format.
+     *
+     * @param file the board file
+     * @return the board stored in file
+     * @throws IOException              if file cannot be read
+     * @throws IllegalArgumentException if file does not match the grammar, with a
+     *                                  message giving the line and column of the
+     *                                  problem
+     */
+    static Board load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + ": board file too large (" + size + " bytes)");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            BoardFileLoader loader = new BoardFileLoader(buffer, (int) size);
+            loader.decodeRows();
+            return new Board(loader.width, loader.height, loader.mines, OptionalLong.empty(), 0);
+        }
+    }
+
+    private BoardFileLoader(MappedByteBuffer buffer, int end) {
+        this.buffer = buffer;
+        this.end = end;
+
+        int position = 0;
+        int[] parsed = new int[1];
+        position = parseInt(position, parsed, 1);
+        width = parsed[0];
+        position = expect(position, (byte) ' ', 1, "a space");
+        position = parseInt(position, parsed, 1);
+        height = parsed[0];
+        if (!isNewline(position)) {
+            throw error(1, position, "expected end of line");
+        }
+        bodyStart = skipNewline(position);
+
+        if ((long) width * height * 2 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("line 1: board of " + width + "x" + height + " is too large");
+        }
+        mines = new byte[width * height];
+    }
+
+    /*
+     * Parses a positive INT starting at position on line number line, storing it
+     * in result[0] and returning the position after it.
+     */
+    private int parseInt(int position, int[] result, int line) {
+        long value = 0;
+        int start = position;
+        while (position < end && isDigit(byteAt(position))) {
+            value = value * 10 + (byteAt(position) - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw error(line, start, "number too large");
+            }
+            position++;
+        }
+        if (position == start) {
+            throw error(line, position, "expected a number");
+        }
+        if (value == 0) {
+            throw error(line, start, "board dimensions must be positive");
+        }
+        result[0] = (int) value;
+        return position;
+    }
+
+    private int expect(int position, byte expected, int line, String description) {
+        if (position >= end || byteAt(position) != expected) {
+            throw error(line, position, "expected " + description);
+        }
+        return position + 1;
+    }
+
+    private void decodeRows() {
+        int bodyLength = end - bodyStart;
+        int chunks = Math.max(1, bodyLength / BYTES_PER_CHUNK);
+
+        int[] linesBefore = new int[chunks + 1];
+        int[] lineCounts = IntStream.range(0, chunks).parallel().map(c -> countLineStarts(c, chunks)).toArray();
+        for (int c = 0; c < chunks; c++) {
+            linesBefore[c + 1] = linesBefore[c] + lineCounts[c];
+        }
+
+        IllegalArgumentException firstError = IntStream.range(0, chunks).parallel()
+                .mapToObj(c -> decodeChunk(c, chunks, linesBefore[c]))
+                .filter(e -> e != null).findFirst().orElse(null);
+        if (firstError != null) {
+            throw firstError;
+        }
+
+        int rows = linesBefore[chunks];
+        if (rows != height) {
+            throw error(rows + 2, end, "expected " + height + " rows but found " + rows);
+        }
+    }
+
+    private int chunkStart(int chunk, int chunks) {
+        return bodyStart + (int) ((long) (end - bodyStart) * chunk / chunks);
+    }
+
+    /*
+     * Copies the bytes of the chunk into an array, starting one byte before the
+     * chunk and ending one byte after it where the file allows, so that line
+     * starts can be recognized at both edges.
+     */
+    private byte[] chunkBytes(int from, int to) {
+        byte[] bytes = new byte[to - from + 2];
+        int copyFrom = from - 1;
+        int copyTo = Math.min(to + 1, end);
+        buffer.get(copyFrom, bytes, 0, copyTo - copyFrom);
+        return bytes;
+    }
+
+    private int countLineStarts(int chunk, int chunks) {
+        int from = chunkStart(chunk, chunks);
+        int to = chunkStart(chunk + 1, chunks);
+        byte[] bytes = chunkBytes(from, to);
+        int count = from == bodyStart && from < to ? 1 : 0;
+        for (int k = from == bodyStart ? 2 : 1; k <= to - from; k++) {
+            byte previous = bytes[k - 1];
+            if (previous == '\n' || (previous == '\r' && bytes[k] != '\n'))
+                count++;
+        }
+        return count;
+    }
+
+    /*
+     * Decodes every row starting in the chunk, whose first row is row number
+     * firstRow, returning the first error found or null.
+     */
+    private IllegalArgumentException decodeChunk(int chunk, int chunks, int firstRow) {
+        int from = chunkStart(chunk, chunks);
+        int limit = chunkStart(chunk + 1, chunks);
+        int position = from;
+        while (position < limit && !isLineStart(position))
+            position++;
+
+        byte[] line = new byte[2 * width + 1];
+        int row = firstRow;
+        try {
+            while (position < limit) {
+                int next = decodeRow(position, row, line);
+                row++;
+                position = next < end ? skipNewline(next) : end;
+            }
+        } catch (IllegalArgumentException e) {
+            return e;
+        }
+        return null;
+    }
+
+    /*
+     * Decodes the row number row starting at start, using line as scratch space,
+     * and returns the position of the NEWLINE that ends it, or end if it is the
+     * last line of the file.
+     */
+    private int decodeRow(int start, int row, byte[] line) {
+        int lineNumber = row + 2;
+        if (row >= height) {
+            throw error(lineNumber, start, "expected end of file after " + height + " rows");
+        }
+        int length = Math.min(line.length, end - start);
+        buffer.get(start, line, 0, length);
+
+        int offset = row * width;
+        for (int x = 0; x < width; x++) {
+            int k = 2 * x;
+            if (x > 0 && (k - 1 >= length || line[k - 1] != ' ')) {
+                throw error(lineNumber, start + k - 1, "expected a space");
+            }
+            byte b = k < length ? line[k] : 0;
+            if (b == '1') {
+                mines[offset + x] = Board.MINE;
+            } else if (b != '0') {
+                throw error(lineNumber, start + k, "expected '0' or '1'");
+            }
+        }
+        int position = start + 2 * width - 1;
+        if (position < end && !isNewline(position)) {
+            throw error(lineNumber, position, "expected end of line after " + width + " values");
+        }
+        return position;
+    }
+
+    private boolean isLineStart(int position) {
+        if (position == bodyStart)
+            return true;
+        byte previous = byteAt(position - 1);
+        return previous == '\n' || (previous == '\r' && byteAt(position) != '\n');
+    }
+
+    private boolean isNewline(int position) {
+        return position < end && (byteAt(position) == '\n' || byteAt(position) == '\r');
+    }
+
+    private int skipNewline(int position) {
+        if (byteAt(position) == '\r' && position + 1 < end && byteAt(position + 1) == '\n')
+            return position + 2;
+        return position + 1;
+    }
+
+    private byte byteAt(int position) {
+        return buffer.get(position);
+    }
+
+    private static boolean isDigit(byte b) {
+        return '0' <= b && b <= '9';
+    }
+
+    /*
+     * Returns an error for the character at position, which is on line number
+     * line, counting from 1.
+     */
+    private IllegalArgumentException error(int line, int position, String message) {
+        int lineStart = position;
+        while (lineStart > 0 && !isLineBreak(lineStart - 1))
+            lineStart--;
+        return new IllegalArgumentException(
+                "line " + line + ", column " + (position - lineStart + 1) + ": " + message);
+    }
+
+    private boolean isLineBreak(int position) {
+        byte b = byteAt(position);
+        return b == '\n' || b == '\r';
+    }
+}
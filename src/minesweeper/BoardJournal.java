@@ -0,0 +1,320 @@
+package minesweeper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps a board recoverable after the process dies, in a directory holding a
+ * snapshot of the board and a write-ahead log of the operations performed on it
+ * since.
+ *
+ * The snapshot, SNAPSHOT_FILE, is the board saved with its state of play by
+ * Board.save. The log, LOG_FILE, is a sequence of records of RECORD_BYTES
+ * bytes each: the version the operation produced (8 bytes), its
+ * Board.Operation ordinal (1 byte), x and y (4 bytes each), and the CRC-32C of
+ * those 17 bytes (4 bytes), all big-endian.
+ *
+ * Operations reach the journal through a Board.Listener, which only queues
+ * them, so journaling adds no I/O to an operation. A background thread appends
+ * the queued operations to the log in batches and forces each batch to the
+ * storage device, so an operation can be lost if the process dies within about
+ * FLUSH_MILLIS of it. Every snapshotMillis, if the board has changed, the same
+ * thread saves a new snapshot, replaces the old one with it, and empties the
+ * log.
+ *
+ * If the log or a snapshot cannot be written, the journal fails: it stops
+ * listening to the board, since the operations after the failure could not be
+ * recovered, and awaitFailure and close report why, so that the owner can stop
+ * play rather than go on unjournaled.
+ */
+public class BoardJournal implements Closeable {
+
+    /** Name of the snapshot file within the journal directory. */
+    public static final String SNAPSHOT_FILE = "board.bin";
+    /** Name of the log file within the journal directory. */
+    public static final String LOG_FILE = "board.log";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int RECORD_BYTES = 8 + 1 + 4 + 4 + 4;
+    private static final int CHECKED_BYTES = RECORD_BYTES - 4;
+
+    /** How long the writer waits for more operations before each batch. */
+    private static final long FLUSH_MILLIS = 5;
+    /** Records written to the log per write call. */
+    private static final int RECORDS_PER_WRITE = 1024;
+
+    private final Board board;
+    private final File directory;
+    private final long snapshotMillis;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final FileChannel log;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    // used only by the writer thread once it has started
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS_PER_WRITE * RECORD_BYTES);
+    private final CRC32C crc = new CRC32C();
+    private long snapshotVersion;
+    private long lastSnapshotTime;
+
+    /*
+     * Abstraction function: AF(board, directory, pending) = a journal that makes
+     * board recoverable from directory, where the snapshot in directory holds
+     * board as of version snapshotVersion and the log holds, in batches, the
+     * operations since then that are no longer in pending.
+     *
+     * Rep invariant: snapshotMillis > 0. Every record in the log has a version
+     * greater than snapshotVersion, except just after a crash between replacing
+     * the snapshot and emptying the log, which recovery tolerates by skipping
+     * them.
+     *
+     * Safety from rep exposure argument: all fields are private, and board is
+     * the one the caller asked to be journaled.
+     *
+     * Thread safety argument: board is threadsafe, and the listener only adds
+     * to pending, a concurrent queue. The log, buffer, crc, snapshotVersion and
+     * lastSnapshotTime are only used by the writer thread after the constructor
+     * starts it. closed and failure are volatile.
+     */
+
+    /*
+     * An operation waiting to be logged.
+     */
+    private static class Entry {
+        private final long version;
+        private final Board.Operation op;
+        private final int x;
+        private final int y;
+
+        private Entry(long version, Board.Operation op, int x, int y) {
+            this.version = version;
+            this.op = op;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     *
+     * @param directory a journal directory
+     * @return true if directory holds a snapshot that recover can start from
+     */
+    public static boolean canRecover(File directory) {
+        return new File(directory, SNAPSHOT_FILE).isFile();
+    }
+
+    /**
+     * Rebuilds a board from its journal: loads the snapshot and replays the
+     * logged operations after it in version order. Replay stops at the first
+     * version missing from the log, or at a damaged or partly written record,
+     * since the operations after it may depend on the missing ones.
+     *
+     * Every logged operation changed the board, and operations take their
+     * versions in the order of their effects, so each one replayed must change
+     * the board again. One that does not shows that the snapshot and the log
+     * disagree, and replay stops there as at a missing version. The recovered
+     * board always has the version of the last operation recovered.
+     *
+     * @param directory a journal directory, requires canRecover(directory)
+     * @return the board as of the last operation recovered
+     * @throws IOException if the journal cannot be read, or a logged operation
+     *                     is outside the board, so the log is not this
+     *                     board's
+     */
+    public static Board recover(File directory) throws IOException {
+        Board board = Board.load(new File(directory, SNAPSHOT_FILE));
+        File logFile = new File(directory, LOG_FILE);
+        if (!logFile.isFile())
+            return board;
+
+        List<Entry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C crc = new CRC32C();
+            Board.Operation[] ops = Board.Operation.values();
+            while (in.remaining() >= RECORD_BYTES) {
+                int start = in.position();
+                long version = in.getLong();
+                int op = in.get();
+                int x = in.getInt();
+                int y = in.getInt();
+                crc.reset();
+                crc.update(in.slice(start, CHECKED_BYTES));
+                if (in.getInt() != (int) crc.getValue() || op < 0 || op >= ops.length)
+                    break;
+                entries.add(new Entry(version, ops[op], x, y));
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(e -> e.version));
+        for (Entry e : entries) {
+            long expected = board.getVersion() + 1;
+            if (e.version < expected)
+                continue;
+            if (e.version > expected)
+                break;
+            if (!board.inbounds(e.x, e.y)) {
+                throw new IOException(logFile + ": operation " + e.version + " is outside the board");
+            }
+            switch (e.op) {
+            case DIG:
+                board.dig(e.x, e.y);
+                break;
+            case FLAG:
+                board.flag(e.x, e.y);
+                break;
+            case DEFLAG:
+                board.deflag(e.x, e.y);
+                break;
+            }
+            if (board.getVersion() != e.version)
+                break;
+        }
+        return board;
+    }
+
+    /**
+     * Starts journaling a board into a directory, replacing any journal already
+     * there once a first snapshot of board has been saved.
+     *
+     * @param board          the board to journal; its listener is replaced
+     * @param directory      the journal directory, created if it does not exist
+     * @param snapshotMillis milliseconds between snapshots, requires
+     *                       snapshotMillis > 0
+     * @throws IOException if the directory or its files cannot be written
+     */
+    public BoardJournal(Board board, File directory, long snapshotMillis) throws IOException {
+        this.board = board;
+        this.directory = directory;
+        this.snapshotMillis = snapshotMillis;
+        Files.createDirectories(directory.toPath());
+
+        board.setListener((version, op, x, y) -> pending.add(new Entry(version, op, x, y)));
+        snapshotVersion = saveSnapshot();
+        lastSnapshotTime = System.currentTimeMillis();
+        log = FileChannel.open(new File(directory, LOG_FILE).toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        writer = new Thread(this::writeLog, "board journal " + directory);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * Saves board to the snapshot file, returning the version saved. The new
+     * snapshot is written beside the old one and moved over it, so a crash
+     * leaves one or the other.
+     */
+    private long saveSnapshot() throws IOException {
+        File temporary = new File(directory, SNAPSHOT_FILE + TEMPORARY_SUFFIX);
+        long saved = board.save(temporary, true);
+        Files.move(temporary.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return saved;
+    }
+
+    private void writeLog() {
+        try {
+            while (!closed || !pending.isEmpty()) {
+                if (pending.isEmpty()) {
+                    Thread.sleep(FLUSH_MILLIS);
+                } else {
+                    writeBatch();
+                }
+                if (System.currentTimeMillis() - lastSnapshotTime >= snapshotMillis
+                        && board.getVersion() != snapshotVersion) {
+                    snapshot();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            board.setListener(null);
+            pending.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Appends every pending operation to the log and forces it to the device.
+     */
+    private void writeBatch() throws IOException {
+        for (Entry e = pending.poll(); e != null; e = pending.poll()) {
+            if (e.version <= snapshotVersion)
+                continue;
+            if (!buffer.hasRemaining())
+                flush();
+            int start = buffer.position();
+            buffer.putLong(e.version).put((byte) e.op.ordinal()).putInt(e.x).putInt(e.y);
+            crc.reset();
+            crc.update(buffer.slice(start, CHECKED_BYTES));
+            buffer.putInt((int) crc.getValue());
+        }
+        flush();
+        log.force(false);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            log.write(buffer);
+        buffer.clear();
+    }
+
+    /*
+     * Replaces the snapshot and empties the log. Every operation already written
+     * to the log was queued before the snapshot's copy of the board was taken,
+     * so the new snapshot includes it.
+     */
+    private void snapshot() throws IOException {
+        long saved = saveSnapshot();
+        log.truncate(0);
+        log.position(0);
+        snapshotVersion = saved;
+        lastSnapshotTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until the journal stops, which it only does by itself if it fails.
+     *
+     * @return why the journal failed, or null if it was closed without failing
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public IOException awaitFailure() throws InterruptedException {
+        writer.join();
+        return failure;
+    }
+
+    /**
+     * Stops journaling after logging every operation already performed on the
+     * board. Operations performed on the board afterwards are not logged.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        board.setListener(null);
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        if (failure != null)
+            throw failure;
+    }
+}
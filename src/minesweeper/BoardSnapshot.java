@@ -0,0 +1,87 @@
+package minesweeper;
+
+/**
+ * An immutable picture of a Board as of one version, i.e. after some number of
+ * successful dig, flag and deflag operations.
+ */
+public class BoardSnapshot {
+
+    private final long version;
+    private final int width;
+    private final int height;
+    private final String text;
+
+    /*
+     * Abstraction function: AF(version, width, height, text) = the board of
+     * dimensions width by height as it was after version successful operations,
+     * where text is exactly what Board.toString() returned at that version.
+     *
+     * Rep invariant: width > 0, height > 0, version >= 0, and text has length 2 *
+     * width * height, with a newline at the end of every row.
+     *
+     * Safety from rep exposure argument: all fields are private, final and
+     * immutable.
+     *
+     * Thread safety argument: BoardSnapshot is immutable.
+     */
+
+    BoardSnapshot(long version, int width, int height, String text) {
+        this.version = version;
+        this.width = width;
+        this.height = height;
+        this.text = text;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert width > 0 && height > 0 && version >= 0;
+        assert text.length() == 2 * width * height;
+    }
+
+    /**
+     *
+     * @return the number of successful dig, flag and deflag operations the board
+     *         had performed when this snapshot was taken
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return the width of the board
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     *
+     * @return the height of the board
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Checks the status of the given position in this snapshot, as
+     * Board.status(x, y) would have returned it.
+     *
+     * @param x coordinate, must be within board width bounds
+     * @param y coordinate, must be within board height bounds
+     * @return '-' if the square is untouched, 'F' if flagged, otherwise the digit
+     *         giving the number of neighbors with a bomb
+     */
+    public char status(int x, int y) {
+        char c = text.charAt(2 * (y * width + x));
+        return c != ' ' ? c : '0';
+    }
+
+    /**
+     * @return the board in the same format as Board.toString()
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,242 @@
+package minesweeper;
+
+import java.util.Arrays;
+
+/**
+ * A mutable set of cell numbers, compressed like a roaring bitmap so that its
+ * size follows the number of members rather than the range they come from.
+ *
+ * Cell numbers are split into a block key, the high bits, and a 16-bit offset
+ * within the block. Each block holding any members has a container: a sorted
+ * array of offsets while it has at most ARRAY_LIMIT members, and a bitmap of
+ * all 65536 offsets once it has more, until it falls below ARRAY_LIMIT / 2
+ * members again, so that a block hovering around the limit is not converted
+ * back and forth. Lookups binary search the block keys and
+ * then the container, so they take time logarithmic in the number of members.
+ */
+class CellSet {
+
+    /** Number of offsets in a block. */
+    static final int BLOCK_CELLS = 1 << 16;
+
+    /** Most members an array container holds; beyond this a bitmap is smaller. */
+    private static final int ARRAY_LIMIT = 4096;
+    /** Fewest members a bitmap container holds before it becomes an array. */
+    private static final int BITMAP_MINIMUM = ARRAY_LIMIT / 2;
+    /** Number of words of bits in a bitmap container, followed by its count. */
+    private static final int BITMAP_WORDS = BLOCK_CELLS / 64;
+
+    private long[] keys = new long[4];
+    private Object[] containers = new Object[4];
+    private int blocks = 0;
+    private long size = 0;
+
+    /*
+     * Abstraction function: AF(keys, containers, blocks) = the set of cell
+     * numbers keys[i] * BLOCK_CELLS + offset, for every i < blocks and every
+     * offset in containers[i].
+     *
+     * Rep invariant: keys[0..blocks) is strictly ascending, and containers[i]
+     * is either a short[] of at most ARRAY_LIMIT + 1 entries whose first
+     * element is its number of members, at least 1, and whose following
+     * elements are the offsets of the members in ascending unsigned order, or
+     * a long[BITMAP_WORDS + 1] bitmap whose first BITMAP_WORDS words have at
+     * least BITMAP_MINIMUM bits set and whose last word is how many. size is
+     * the number of members.
+     *
+     * Safety from rep exposure argument: all fields are private and no method
+     * returns them.
+     *
+     * Thread safety argument: not threadsafe; callers must synchronize.
+     */
+
+    /**
+     *
+     * @param cell a cell number, must be >= 0
+     * @return true if cell is a member
+     */
+    boolean contains(long cell) {
+        int block = findBlock(cell >>> 16);
+        if (block < 0)
+            return false;
+        int offset = (int) cell & 0xFFFF;
+        Object container = containers[block];
+        if (container instanceof long[])
+            return (((long[]) container)[offset >>> 6] & (1L << offset)) != 0;
+        short[] array = (short[]) container;
+        return indexOf(array, offset) >= 0;
+    }
+
+    /**
+     * Adds a cell to the set.
+     *
+     * @param cell a cell number, must be >= 0
+     * @return true if cell was not already a member
+     */
+    boolean add(long cell) {
+        long key = cell >>> 16;
+        int offset = (int) cell & 0xFFFF;
+        int block = findBlock(key);
+        if (block < 0) {
+            block = -block - 1;
+            insertBlock(block, key, new short[] { 0 });
+        }
+
+        Object container = containers[block];
+        if (container instanceof long[]) {
+            long[] bitmap = (long[]) container;
+            long bit = 1L << offset;
+            if ((bitmap[offset >>> 6] & bit) != 0)
+                return false;
+            bitmap[offset >>> 6] |= bit;
+            bitmap[BITMAP_WORDS]++;
+        } else {
+            short[] array = (short[]) container;
+            int position = indexOf(array, offset);
+            if (position >= 0)
+                return false;
+            containers[block] = insertOffset(array, -position - 1, offset);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a cell from the set.
+     *
+     * @param cell a cell number, must be >= 0
+     * @return true if cell was a member
+     */
+    boolean remove(long cell) {
+        int block = findBlock(cell >>> 16);
+        if (block < 0)
+            return false;
+        int offset = (int) cell & 0xFFFF;
+
+        Object container = containers[block];
+        if (container instanceof long[]) {
+            long[] bitmap = (long[]) container;
+            long bit = 1L << offset;
+            if ((bitmap[offset >>> 6] & bit) == 0)
+                return false;
+            bitmap[offset >>> 6] &= ~bit;
+            int count = (int) --bitmap[BITMAP_WORDS];
+            if (count < BITMAP_MINIMUM)
+                containers[block] = toArray(bitmap, count);
+        } else {
+            short[] array = (short[]) container;
+            int position = indexOf(array, offset);
+            if (position < 0)
+                return false;
+            int count = array[0] & 0xFFFF;
+            System.arraycopy(array, position + 1, array, position, count - position);
+            array[0] = (short) (count - 1);
+            if (count == 1)
+                removeBlock(block);
+            else if (4 * count < array.length)
+                containers[block] = Arrays.copyOf(array, array.length / 2);
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of members
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return the approximate number of bytes the containers take up
+     */
+    long containerBytes() {
+        long bytes = 0;
+        for (int i = 0; i < blocks; i++) {
+            Object container = containers[i];
+            bytes += container instanceof long[] ? 8L * ((long[]) container).length : 2L * ((short[]) container).length;
+        }
+        return bytes + 16L * keys.length;
+    }
+
+    private int findBlock(long key) {
+        return Arrays.binarySearch(keys, 0, blocks, key);
+    }
+
+    private void insertBlock(int position, long key, Object container) {
+        if (blocks == keys.length) {
+            keys = Arrays.copyOf(keys, blocks * 2);
+            containers = Arrays.copyOf(containers, blocks * 2);
+        }
+        System.arraycopy(keys, position, keys, position + 1, blocks - position);
+        System.arraycopy(containers, position, containers, position + 1, blocks - position);
+        keys[position] = key;
+        containers[position] = container;
+        blocks++;
+    }
+
+    private void removeBlock(int position) {
+        System.arraycopy(keys, position + 1, keys, position, blocks - position - 1);
+        System.arraycopy(containers, position + 1, containers, position, blocks - position - 1);
+        blocks--;
+        containers[blocks] = null;
+    }
+
+    /*
+     * Returns the position of offset in array, or (-(insertion point) - 1) if
+     * absent, where positions count from 1 as array[0] is the member count.
+     */
+    private static int indexOf(short[] array, int offset) {
+        int low = 1;
+        int high = array[0] & 0xFFFF;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = array[middle] & 0xFFFF;
+            if (value < offset)
+                low = middle + 1;
+            else if (value > offset)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -low - 1;
+    }
+
+    /*
+     * Inserts offset at position in array, returning the container that now
+     * holds the block: array itself, a larger copy, or a bitmap once the array
+     * would exceed ARRAY_LIMIT.
+     */
+    private static Object insertOffset(short[] array, int position, int offset) {
+        int count = array[0] & 0xFFFF;
+        if (count == ARRAY_LIMIT) {
+            long[] bitmap = new long[BITMAP_WORDS + 1];
+            for (int k = 1; k <= count; k++) {
+                int member = array[k] & 0xFFFF;
+                bitmap[member >>> 6] |= 1L << member;
+            }
+            bitmap[offset >>> 6] |= 1L << offset;
+            bitmap[BITMAP_WORDS] = count + 1;
+            return bitmap;
+        }
+        if (count + 1 == array.length)
+            array = Arrays.copyOf(array, Math.min(2 * array.length, ARRAY_LIMIT + 1));
+        System.arraycopy(array, position, array, position + 1, count + 1 - position);
+        array[position] = (short) offset;
+        array[0] = (short) (count + 1);
+        return array;
+    }
+
+    private static short[] toArray(long[] bitmap, int members) {
+        short[] array = new short[members + 1];
+        int count = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            for (long word = bitmap[w]; word != 0; word &= word - 1)
+                array[++count] = (short) (w * 64 + Long.numberOfTrailingZeros(word));
+        }
+        array[0] = (short) count;
+        return array;
+    }
+}
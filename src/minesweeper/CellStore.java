@@ -0,0 +1,318 @@
+package minesweeper;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A fixed-length array of bytes in which a Board keeps its packed cells and
+ * its rendering, either on the Java heap or in native memory outside it.
+ *
+ * Off-heap storage keeps enormous boards out of the garbage collector's way:
+ * the heap then holds a few small objects per board however large it is.
+ * Every access is bounds-checked, and release frees the native memory at once
+ * instead of whenever the store is collected.
+ *
+ * Besides plain reads and writes, a store supports volatile reads and atomic
+ * updates of single bytes, so that some changes to a board need no lock.
+ */
+abstract class CellStore {
+
+    /**
+     * Allocates a zero-filled store.
+     *
+     * @param length  number of bytes, must be >= 0
+     * @param offHeap true to keep the bytes outside the Java heap
+     * @return the new store
+     */
+    static CellStore allocate(int length, boolean offHeap) {
+        return offHeap ? new Direct(length) : new Heap(new byte[length]);
+    }
+
+    /**
+     * Makes a store holding the given bytes.
+     *
+     * @param bytes   the contents; a heap store takes ownership of the array
+     * @param offHeap true to keep the bytes outside the Java heap
+     * @return the new store
+     */
+    static CellStore of(byte[] bytes, boolean offHeap) {
+        if (!offHeap)
+            return new Heap(bytes);
+        Direct store = new Direct(bytes.length);
+        store.buffer.put(0, bytes, 0, bytes.length);
+        return store;
+    }
+
+    /**
+     *
+     * @return the number of bytes in this store
+     */
+    abstract int length();
+
+    /**
+     *
+     * @return true if the bytes are outside the Java heap, so that release
+     *         frees them at once
+     */
+    abstract boolean isOffHeap();
+
+    /**
+     *
+     * @param i index, requires 0 <= i < length()
+     * @return the byte at index i
+     */
+    abstract byte get(int i);
+
+    /**
+     * Sets the byte at index i.
+     *
+     * @param i     index, requires 0 <= i < length()
+     * @param value the new value
+     */
+    abstract void set(int i, byte value);
+
+    /**
+     *
+     * @param i index, requires 0 <= i < length()
+     * @return the byte at index i, read with volatile memory semantics
+     */
+    abstract byte getVolatile(int i);
+
+    /**
+     * Atomically sets the byte at index i to update if it is expected.
+     *
+     * @param i        index, requires 0 <= i < length()
+     * @param expected the value the byte must have
+     * @param update   the new value
+     * @return true if the byte was expected and is now update
+     */
+    abstract boolean compareAndSet(int i, byte expected, byte update);
+
+    /**
+     * Atomically adds delta to the byte at index i, which must not overflow or
+     * underflow.
+     *
+     * @param i     index, requires 0 <= i < length()
+     * @param delta the amount to add
+     * @return the new value of the byte
+     */
+    abstract byte addAndGet(int i, int delta);
+
+    /**
+     * Copies every byte of this store to the start of an array.
+     *
+     * @param destination the array, requires length at least length()
+     */
+    abstract void copyTo(byte[] destination);
+
+    /**
+     *
+     * @return a copy of the bytes in this store
+     */
+    byte[] toArray() {
+        byte[] copy = new byte[length()];
+        copyTo(copy);
+        return copy;
+    }
+
+    /**
+     *
+     * @return the bytes in this store decoded as US-ASCII
+     */
+    abstract String toAsciiString();
+
+    /**
+     * Frees the memory of this store if it is off the heap. Afterwards every
+     * access throws IndexOutOfBoundsException. Requires that no other thread
+     * is using the store.
+     */
+    abstract void release();
+
+    /*
+     * Bytes in an array on the heap.
+     */
+    private static final class Heap extends CellStore {
+        private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+        private byte[] bytes;
+
+        private Heap(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int length() {
+            return bytes.length;
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return false;
+        }
+
+        @Override
+        byte get(int i) {
+            return bytes[i];
+        }
+
+        @Override
+        void set(int i, byte value) {
+            bytes[i] = value;
+        }
+
+        @Override
+        byte getVolatile(int i) {
+            return (byte) BYTES.getVolatile(bytes, i);
+        }
+
+        @Override
+        boolean compareAndSet(int i, byte expected, byte update) {
+            return BYTES.compareAndSet(bytes, i, expected, update);
+        }
+
+        @Override
+        byte addAndGet(int i, int delta) {
+            return (byte) ((byte) BYTES.getAndAdd(bytes, i, (byte) delta) + delta);
+        }
+
+        @Override
+        void copyTo(byte[] destination) {
+            System.arraycopy(bytes, 0, destination, 0, bytes.length);
+        }
+
+        @Override
+        String toAsciiString() {
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        void release() {
+            bytes = new byte[0];
+        }
+    }
+
+    /*
+     * Bytes in a direct buffer, allocated outside the heap. Buffers have no
+     * atomic byte access, so atomic updates work on the aligned 4-byte word
+     * holding the byte; the buffer is allocated with room to align it.
+     */
+    private static final class Direct extends CellStore {
+        private static final ByteBuffer RELEASED = ByteBuffer.allocate(0);
+        private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+                ByteOrder.nativeOrder());
+        private static final int LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0;
+
+        private ByteBuffer allocated;
+        private volatile ByteBuffer buffer;
+        private volatile int length;
+
+        private Direct(int length) {
+            allocated = ByteBuffer.allocateDirect(((length + 3) & ~3) + 4);
+            buffer = allocated.alignedSlice(4);
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        byte get(int i) {
+            return buffer.get(checkIndex(i));
+        }
+
+        @Override
+        void set(int i, byte value) {
+            buffer.put(checkIndex(i), value);
+        }
+
+        private int checkIndex(int i) {
+            if (i < 0 || i >= length)
+                throw new IndexOutOfBoundsException(i);
+            return i;
+        }
+
+        /*
+         * Returns the left shift of byte i within its word.
+         */
+        private static int shift(int i) {
+            int lane = i & 3;
+            return 8 * (LITTLE_ENDIAN == 1 ? lane : 3 - lane);
+        }
+
+        @Override
+        byte getVolatile(int i) {
+            int word = (int) INTS.getVolatile(buffer, checkIndex(i) & ~3);
+            return (byte) (word >>> shift(i));
+        }
+
+        @Override
+        boolean compareAndSet(int i, byte expected, byte update) {
+            int offset = checkIndex(i) & ~3;
+            int shift = shift(i);
+            while (true) {
+                int word = (int) INTS.getVolatile(buffer, offset);
+                if ((byte) (word >>> shift) != expected)
+                    return false;
+                int updated = (word & ~(0xFF << shift)) | ((update & 0xFF) << shift);
+                if (INTS.compareAndSet(buffer, offset, word, updated))
+                    return true;
+            }
+        }
+
+        @Override
+        byte addAndGet(int i, int delta) {
+            int shift = shift(i);
+            int word = (int) INTS.getAndAdd(buffer, checkIndex(i) & ~3, delta << shift);
+            return (byte) ((word >>> shift) + delta);
+        }
+
+        @Override
+        void copyTo(byte[] destination) {
+            buffer.get(0, destination, 0, length);
+        }
+
+        @Override
+        String toAsciiString() {
+            return new String(toArray(), StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        void release() {
+            ByteBuffer released = allocated;
+            allocated = RELEASED;
+            buffer = RELEASED;
+            length = 0;
+            if (released != RELEASED)
+                free(released);
+        }
+    }
+
+    /*
+     * Frees a direct buffer's memory now, through the JDK's unsupported but
+     * stable Unsafe.invokeCleaner, or leaves it to the garbage collector if
+     * that is unavailable.
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the buffer is freed when it is garbage collected
+        }
+    }
+}
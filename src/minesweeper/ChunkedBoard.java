@@ -0,0 +1,643 @@
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A minesweeper board too large to hold in memory, for giant shared worlds
+ * where players only ever touch a tiny fraction of the locations.
+ *
+ * The board is divided into square chunks of CHUNK_SIZE by CHUNK_SIZE
+ * locations. The bombs of each chunk are generated on demand from the board's
+ * seed and the chunk's coordinates, so a chunk whose bombs have never been
+ * changed can be dropped and regenerated identically at any time. At most
+ * maxResident chunks are kept in memory: when there are more, the least
+ * recently used ones are evicted, after each operation and as a dig opens up
+ * an area, and those that have had a bomb dug up are written to a spill
+ * directory to be read back when next needed. The locations an opening has
+ * yet to look around are kept in memory up to FRONTIER_PAGE of them, and
+ * beyond that in a file in the spill directory, so a dig that opens up most
+ * of an enormous board needs no more memory than any other. Each board makes
+ * a new spill directory of its own, so it never reads back files left by
+ * another board, and release deletes it.
+ *
+ * Which locations are dug and flagged is kept apart from the chunks, in
+ * compressed sets whose size follows the number of locations played on, and
+ * neighbor counts are computed from the bombs when needed, so the memory a
+ * game takes grows with how much of the board has been played rather than with
+ * the size of the board.
+ *
+ * Dig, flag, deflag and status behave exactly as on a Board with the same
+ * bombs, and a dig that opens up an area crosses chunk boundaries freely.
+ * look shows a window of the board, since the whole of a giant board cannot
+ * be shown at once; a snapshot shows the whole board, and so can only be
+ * taken of a board of at most MAX_SNAPSHOT_LOCATIONS locations. Failures to
+ * read or write the spill directory are thrown as UncheckedIOException.
+ */
+public class ChunkedBoard implements GameBoard {
+
+    /** Side length of a chunk, in locations. */
+    public static final int CHUNK_SIZE = 64;
+
+    /** Locations of an opening kept in memory before the rest are paged out. */
+    static final int FRONTIER_PAGE = 1 << 14;
+
+    /** Most locations of a board whose snapshot can be taken. */
+    public static final long MAX_SNAPSHOT_LOCATIONS = (Integer.MAX_VALUE - 8) / 2;
+
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+    /** Side length of the square of locations in each block of a CellSet. */
+    private static final int BLOCK_SIZE = 256;
+
+    /** Spacing between the seeds of consecutive chunks. */
+    private static final long CHUNK_SEED_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final int width;
+    private final int height;
+    private final int chunksWide;
+    private final long blocksWide;
+    private final double probabilityMine;
+    private final long seed;
+    private final int maxResident;
+    private final File spillDirectory;
+    private final LinkedHashMap<Long, Chunk> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final CellSet dug = new CellSet();
+    private final CellSet flagged = new CellSet();
+    private long version = 0;
+    private int spilled = 0;
+    private int peakResident = 0;
+    private BoardSnapshot latest = null;
+
+    /*
+     * Abstraction function: AF(width, height, resident, spillDirectory, seed,
+     * dug, flagged) = the board of width by height where location x,y has a
+     * bomb if bit cellIndex(x, y) of the mines of chunk chunkKey(x / CHUNK_SIZE,
+     * y / CHUNK_SIZE) is set. That chunk is the one in resident if there is
+     * one, else the one in spillDirectory if there is one, else the chunk
+     * generate creates from seed. Location x,y is dug if cellNumber(x, y) is in
+     * dug, flagged if it is in flagged, and untouched otherwise. version counts
+     * the successful dig, flag and deflag operations. latest caches the most
+     * recent snapshot.
+     *
+     * Rep invariant: width > 0, height > 0, maxResident > 0, and every chunk
+     * has CHUNK_CELLS / 64 words of mines. Locations outside the board are
+     * never mines. dug and flagged are disjoint, and hold only the cell numbers
+     * of locations on the board; no dug location has a bomb. A resident chunk
+     * is dirty if its mines have changed since it was generated or read from
+     * spillDirectory. After each public method returns, resident holds at most
+     * maxResident chunks, and while a dig opens up an area at most maxResident
+     * plus the 4 chunks the neighbors of one location can span. spilled is the
+     * number of chunk files in spillDirectory, and peakResident the most
+     * chunks resident has held. If latest is non-null, it shows the board as
+     * of its version, which is <= version.
+     *
+     * Safety from rep exposure argument: all fields are private, and no method
+     * returns a chunk or its cells.
+     *
+     * Thread safety argument: every method that reads or writes resident, dug,
+     * flagged, version, spilled, peakResident, latest or the files in
+     * spillDirectory is synchronized, and the other fields are final and
+     * immutable.
+     */
+
+    private static class Chunk {
+        private final long[] mines;
+        private boolean dirty = false;
+
+        private Chunk(long[] mines) {
+            this.mines = mines;
+        }
+    }
+
+    /**
+     * Creates a board of wide by high whose bombs are generated from seed.
+     *
+     * @param wide            width of the board, must be greater than 0
+     * @param high            height of the board, must be greater than 0
+     * @param probabilityMine the probability of a bomb at each location
+     * @param seed            the seed the bombs are generated from; the same
+     *                        seed and size always give the same board
+     * @param maxResident     the number of chunks to keep in memory, must be
+     *                        greater than 0
+     * @param spillDirectory  an existing directory, in which the board makes a
+     *                        new directory of its own to store changed chunks
+     *                        while they are evicted
+     */
+    public ChunkedBoard(int wide, int high, double probabilityMine, long seed, int maxResident,
+            File spillDirectory) {
+        if (wide <= 0 || high <= 0 || maxResident <= 0) {
+            throw new IllegalArgumentException("bad chunked board " + wide + "x" + high + ", " + maxResident);
+        }
+        this.width = wide;
+        this.height = high;
+        this.chunksWide = (wide + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.blocksWide = (wide + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.probabilityMine = probabilityMine;
+        this.seed = seed;
+        this.maxResident = maxResident;
+        try {
+            this.spillDirectory = Files.createTempDirectory(spillDirectory.toPath(), "board").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long chunkKey(int cx, int cy) {
+        return ((long) cy << 32) | (cx & 0xFFFFFFFFL);
+    }
+
+    private static int cellIndex(int x, int y) {
+        return (y % CHUNK_SIZE) * CHUNK_SIZE + x % CHUNK_SIZE;
+    }
+
+    /*
+     * Returns the number of location x,y in dug and flagged, chosen so that
+     * each block of a CellSet is a square of BLOCK_SIZE by BLOCK_SIZE
+     * locations, which keeps an opening in a few blocks.
+     */
+    private long cellNumber(int x, int y) {
+        long block = (y / BLOCK_SIZE) * blocksWide + x / BLOCK_SIZE;
+        return block * CellSet.BLOCK_CELLS + (y % BLOCK_SIZE) * BLOCK_SIZE + x % BLOCK_SIZE;
+    }
+
+    /*
+     * Returns the chunk containing location x,y, making it resident.
+     */
+    private Chunk chunkOf(int x, int y) {
+        int cx = x / CHUNK_SIZE;
+        int cy = y / CHUNK_SIZE;
+        long key = chunkKey(cx, cy);
+        Chunk chunk = resident.get(key);
+        if (chunk == null) {
+            File file = spillFile(cx, cy);
+            chunk = file.isFile() ? new Chunk(read(file)) : generate(cx, cy);
+            resident.put(key, chunk);
+            peakResident = Math.max(peakResident, resident.size());
+        }
+        return chunk;
+    }
+
+    /*
+     * Creates the chunk cx,cy as it was before any operation.
+     */
+    private Chunk generate(int cx, int cy) {
+        long[] mines = new long[CHUNK_CELLS / 64];
+        SplittableRandom random = new SplittableRandom(seed + ((long) cy * chunksWide + cx) * CHUNK_SEED_GAMMA);
+        int maxX = Math.min(CHUNK_SIZE, width - cx * CHUNK_SIZE);
+        int maxY = Math.min(CHUNK_SIZE, height - cy * CHUNK_SIZE);
+        for (int y = 0; y < maxY; y++) {
+            for (int x = 0; x < maxX; x++) {
+                if (random.nextDouble() < probabilityMine)
+                    mines[(y * CHUNK_SIZE + x) >>> 6] |= 1L << (y * CHUNK_SIZE + x);
+            }
+        }
+        return new Chunk(mines);
+    }
+
+    /*
+     * Evicts the least recently used chunks until at most maxResident remain,
+     * spilling those that have changed since they were generated or read.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Long, Chunk>> eldest = resident.entrySet().iterator();
+        while (resident.size() > maxResident) {
+            Map.Entry<Long, Chunk> entry = eldest.next();
+            Chunk chunk = entry.getValue();
+            if (chunk.dirty) {
+                long key = entry.getKey();
+                File file = spillFile((int) key, (int) (key >>> 32));
+                if (!file.isFile())
+                    spilled++;
+                write(file, chunk.mines);
+            }
+            eldest.remove();
+        }
+    }
+
+    private File spillFile(int cx, int cy) {
+        return new File(spillDirectory, cx + "_" + cy + ".chunk");
+    }
+
+    private static long[] read(File file) {
+        try {
+            long[] mines = new long[CHUNK_CELLS / 64];
+            ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asLongBuffer().get(mines);
+            return mines;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(File file, long[] mines) {
+        ByteBuffer bytes = ByteBuffer.allocate(CHUNK_CELLS / 8);
+        bytes.asLongBuffer().put(mines);
+        try {
+            Files.write(file.toPath(), bytes.array());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean hasBomb(int x, int y) {
+        int i = cellIndex(x, y);
+        return (chunkOf(x, y).mines[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private void setNoBomb(int x, int y) {
+        int i = cellIndex(x, y);
+        Chunk chunk = chunkOf(x, y);
+        chunk.mines[i >>> 6] &= ~(1L << i);
+        chunk.dirty = true;
+    }
+
+    private boolean isUntouched(int x, int y) {
+        long cell = cellNumber(x, y);
+        return !dug.contains(cell) && !flagged.contains(cell);
+    }
+
+    /*
+     * Returns the number of bombs next to location x,y. Counts are not stored,
+     * since removing a bomb would change counts in up to three other chunks,
+     * and most locations are never dug.
+     */
+    private int countSurroundingBombs(int x, int y) {
+        int counter = 0;
+        int maxWide = Math.min(x + 2, width);
+        int maxHigh = Math.min(y + 2, height);
+        for (int i = Math.max(x - 1, 0); i < maxWide; i++) {
+            for (int j = Math.max(y - 1, 0); j < maxHigh; j++) {
+                if ((i != x || j != y) && hasBomb(i, j))
+                    counter++;
+            }
+        }
+        return counter;
+    }
+
+    @Override
+    public boolean inbounds(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    /**
+     * Digs at location x,y as Board.dig does: if it is untouched, removes any
+     * bomb there and reveals it, along with every untouched location reachable
+     * from it through revealed locations with no neighboring bombs.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if location x,y was untouched and had a bomb
+     */
+    @Override
+    public synchronized boolean dig(int x, int y) {
+        assert inbounds(x, y);
+        if (!isUntouched(x, y))
+            return false;
+
+        boolean result = hasBomb(x, y);
+        if (result)
+            setNoBomb(x, y);
+        floodFill(x, y);
+        version++;
+        evict();
+        return result;
+    }
+
+    /*
+     * Reveals the untouched, bomb-free location x,y and every untouched location
+     * reachable from it through revealed locations with no neighboring bombs.
+     * Chunks are evicted as the opening spreads, and the frontier holds
+     * locations as y * width + x.
+     */
+    private void floodFill(int x, int y) {
+        Frontier frontier = new Frontier(new File(spillDirectory, "frontier"), FRONTIER_PAGE);
+        try {
+            if (reveal(x, y))
+                frontier.add((long) y * width + x);
+
+            while (!frontier.isEmpty()) {
+                if (resident.size() > maxResident)
+                    evict();
+                long location = frontier.remove();
+                int cx = (int) (location % width);
+                int cy = (int) (location / width);
+                int maxWide = Math.min(cx + 2, width);
+                int maxHigh = Math.min(cy + 2, height);
+                for (int nx = Math.max(cx - 1, 0); nx < maxWide; nx++) {
+                    for (int ny = Math.max(cy - 1, 0); ny < maxHigh; ny++) {
+                        if (isUntouched(nx, ny) && reveal(nx, ny))
+                            frontier.add((long) ny * width + nx);
+                    }
+                }
+            }
+        } finally {
+            frontier.close();
+        }
+    }
+
+    /*
+     * The locations an opening has yet to look around, in no particular order,
+     * since the area it reveals does not depend on the order. At most one page
+     * of them is held in memory: when the page fills, it is written to the end
+     * of file, and when it empties, the last page written is read back. The
+     * file is deleted when the frontier is closed.
+     */
+    static class Frontier {
+        private final File file;
+        private final long[] page;
+        private final ByteBuffer bytes;
+        private int size = 0;
+        private long pagesOut = 0;
+        private FileChannel channel = null;
+
+        /*
+         * Makes an empty frontier holding pageSize locations in memory, which
+         * pages the rest out to file.
+         */
+        Frontier(File file, int pageSize) {
+            this.file = file;
+            this.page = new long[pageSize];
+            this.bytes = ByteBuffer.allocate(pageSize * 8);
+        }
+
+        boolean isEmpty() {
+            return size == 0 && pagesOut == 0;
+        }
+
+        void add(long location) {
+            if (size == page.length)
+                pageOut();
+            page[size++] = location;
+        }
+
+        /*
+         * Removes and returns a location, requires !isEmpty().
+         */
+        long remove() {
+            if (size == 0)
+                pageIn();
+            return page[--size];
+        }
+
+        private void pageOut() {
+            bytes.clear();
+            bytes.asLongBuffer().put(page);
+            try {
+                if (channel == null)
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                long position = pagesOut * bytes.capacity();
+                while (bytes.hasRemaining())
+                    position += channel.write(bytes, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pagesOut++;
+            size = 0;
+        }
+
+        private void pageIn() {
+            pagesOut--;
+            bytes.clear();
+            try {
+                long position = pagesOut * bytes.capacity();
+                while (bytes.hasRemaining()) {
+                    int read = channel.read(bytes, position);
+                    if (read < 0)
+                        throw new IOException(file + ": frontier page cut short");
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bytes.flip();
+            bytes.asLongBuffer().get(page);
+            size = page.length;
+        }
+
+        void close() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+                Files.delete(file.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * Marks location x,y as dug, returning true if it has no neighboring bombs.
+     */
+    private boolean reveal(int x, int y) {
+        dug.add(cellNumber(x, y));
+        return countSurroundingBombs(x, y) == 0;
+    }
+
+    /**
+     * Flags location x,y if it is untouched.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if location was successfully marked with a flag
+     */
+    @Override
+    public synchronized boolean flag(int x, int y) {
+        assert inbounds(x, y);
+        boolean changed = isUntouched(x, y) && flagged.add(cellNumber(x, y));
+        return finish(changed);
+    }
+
+    /**
+     * Removes the flag from location x,y if it is flagged.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if location was successfully deflagged
+     */
+    @Override
+    public synchronized boolean deflag(int x, int y) {
+        assert inbounds(x, y);
+        return finish(flagged.remove(cellNumber(x, y)));
+    }
+
+    private boolean finish(boolean changed) {
+        if (changed)
+            version++;
+        evict();
+        return changed;
+    }
+
+    /**
+     * Checks the status of the given location.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return '-' if the location is untouched, 'F' if flagged, otherwise the
+     *         digit giving the number of neighbors with a bomb
+     */
+    @Override
+    public synchronized char status(int x, int y) {
+        assert inbounds(x, y);
+        char result = statusOf(x, y);
+        evict();
+        return result;
+    }
+
+    private char statusOf(int x, int y) {
+        long cell = cellNumber(x, y);
+        if (dug.contains(cell))
+            return (char) ('0' + countSurroundingBombs(x, y));
+        return flagged.contains(cell) ? 'F' : '-';
+    }
+
+    /**
+     * Shows a window of the board in the format of the look command, with a
+     * space in place of 0.
+     *
+     * @param x    left edge of the window, within board width bounds
+     * @param y    top edge of the window, within board height bounds
+     * @param wide width of the window, greater than 0 and with x + wide <= width
+     * @param high height of the window, greater than 0 and with y + high <=
+     *             height
+     * @return the rows of the window, each ending in a newline
+     */
+    public synchronized String look(int x, int y, int wide, int high) {
+        assert inbounds(x, y) && inbounds(x + wide - 1, y + high - 1);
+        return render(x, y, wide, high);
+    }
+
+    /*
+     * Returns the window of look, rendered a chunk at a time and evicting after
+     * each, so that a window larger than memory can be shown.
+     */
+    private String render(int x, int y, int wide, int high) {
+        byte[] text = new byte[2 * wide * high];
+        for (int cy = y / CHUNK_SIZE; cy <= (y + high - 1) / CHUNK_SIZE; cy++) {
+            int maxY = (int) Math.min(y + high, (cy + 1L) * CHUNK_SIZE);
+            for (int cx = x / CHUNK_SIZE; cx <= (x + wide - 1) / CHUNK_SIZE; cx++) {
+                int maxX = (int) Math.min(x + wide, (cx + 1L) * CHUNK_SIZE);
+                for (int j = Math.max(y, cy * CHUNK_SIZE); j < maxY; j++) {
+                    for (int i = Math.max(x, cx * CHUNK_SIZE); i < maxX; i++) {
+                        char c = statusOf(i, j);
+                        int k = 2 * ((j - y) * wide + i - x);
+                        text[k] = (byte) (c != '0' ? c : ' ');
+                        text[k + 1] = (byte) (i < x + wide - 1 ? ' ' : '\n');
+                    }
+                }
+                evict();
+            }
+        }
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Takes a snapshot of the whole board, shared by every snapshot of the
+     * same version.
+     *
+     * @return a snapshot of this board as of its current version
+     * @throws IllegalStateException if the board has more than
+     *                               MAX_SNAPSHOT_LOCATIONS locations
+     */
+    @Override
+    public synchronized BoardSnapshot snapshot() {
+        if ((long) width * height > MAX_SNAPSHOT_LOCATIONS) {
+            throw new IllegalStateException("board of " + width + "x" + height + " is too large to snapshot");
+        }
+        if (latest == null || latest.getVersion() != version)
+            latest = new BoardSnapshot(version, width, height, render(0, 0, width, height));
+        return latest;
+    }
+
+    /**
+     * Deletes this board's spill directory and the chunks in it. The board
+     * must not be used afterwards.
+     */
+    @Override
+    public synchronized void release() {
+        try {
+            File[] files = spillDirectory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(spillDirectory.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     *
+     * @return the number of chunks currently held in memory
+     */
+    public synchronized int getResidentChunks() {
+        return resident.size();
+    }
+
+    /**
+     *
+     * @return the number of changed chunks that have been written to the spill
+     *         directory
+     */
+    public synchronized int getSpilledChunks() {
+        return spilled;
+    }
+
+    /**
+     *
+     * @return the approximate number of bytes used to record which locations
+     *         are dug and flagged
+     */
+    public synchronized long getStatusBytes() {
+        return dug.containerBytes() + flagged.containerBytes();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /*
+     * Returns the most chunks held in memory at once so far, for tests.
+     */
+    synchronized int getPeakResidentChunks() {
+        return peakResident;
+    }
+
+    /*
+     * Returns true if location x,y has a bomb, for comparing this board with a
+     * Board in tests.
+     */
+    synchronized boolean mineAt(int x, int y) {
+        boolean result = hasBomb(x, y);
+        evict();
+        return result;
+    }
+}
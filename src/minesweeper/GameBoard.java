@@ -0,0 +1,101 @@
+package minesweeper;
+
+/**
+ * A minesweeper board that clients of a MinesweeperServer can play on. Each
+ * location x,y with 0 <= x < width and 0 <= y < height is untouched, flagged or
+ * dug, and may hold a bomb. Implementations are threadsafe.
+ */
+public interface GameBoard {
+
+    /**
+     *
+     * @return the width of this board
+     */
+    int getWidth();
+
+    /**
+     *
+     * @return the height of this board
+     */
+    int getHeight();
+
+    /**
+     *
+     * @param x coordinate
+     * @param y coordinate
+     * @return true if x,y is a location on this board
+     */
+    boolean inbounds(int x, int y);
+
+    /**
+     * Digs at location x,y if it is untouched, removing any bomb there and
+     * revealing every untouched location reachable from it through revealed
+     * locations with no neighboring bombs.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if location x,y was untouched and had a bomb
+     */
+    boolean dig(int x, int y);
+
+    /**
+     * Flags location x,y if it is untouched.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if the location was flagged by this call
+     */
+    boolean flag(int x, int y);
+
+    /**
+     * Removes the flag from location x,y if it is flagged.
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if the location was deflagged by this call
+     */
+    boolean deflag(int x, int y);
+
+    /**
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return '-' if location x,y is untouched, 'F' if flagged, otherwise the
+     *         digit giving the number of neighbors with a bomb
+     */
+    char status(int x, int y);
+
+    /**
+     *
+     * @return the number of successful dig, flag and deflag operations performed
+     *         on this board so far
+     */
+    long getVersion();
+
+    /**
+     * Takes a consistent snapshot of this board. Snapshots of the same version
+     * are shared, so repeated calls on an unchanged board do no copying.
+     *
+     * @return a snapshot of this board as of some version at least as recent as
+     *         every operation that completed before this call
+     */
+    BoardSnapshot snapshot();
+
+    /**
+     * Frees what this board holds outside the Java heap, such as native
+     * memory, files or a place among the processes sharing it, once the game on
+     * it has ended. The board must not be used afterwards. Releasing a board
+     * again has no further effect.
+     */
+    void release();
+
+    /**
+     *
+     * @return the board in the format of the look command: one line per row,
+     *         locations separated by spaces, with '-' for untouched, 'F' for
+     *         flagged, ' ' for dug with no neighboring bombs, and otherwise the
+     *         number of neighboring bombs
+     */
+    @Override
+    String toString();
+}
@@ -0,0 +1,570 @@
+package minesweeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A board that lives in a memory-mapped file, so that several processes on
+ * one machine, each mapping the same file, all play on the same board with no
+ * replication between them.
+ *
+ * The file holds a HEADER_BYTES header followed by the board's packed cells,
+ * in Board's layout, padded to a multiple of 4 bytes. The header holds, as
+ * little-endian numbers, the magic number MAGIC (int, offset 0), FORMAT (int,
+ * 4), the width (int, 8) and height (int, 12) and the version (long, 16),
+ * followed from offset SLOTS_OFFSET by SLOTS process slots of SLOT_BYTES
+ * each. A slot holds the process id of its owner, or 0 if it is free (long,
+ * 0), the time in milliseconds of its owner's last heartbeat (long, 8), and
+ * the number of operations started (long, 16) and finished (long, 24) through
+ * it. Every mapping takes a slot of its own when it is opened and gives it up
+ * when it is released.
+ *
+ * Locks cannot span processes, so every change is an atomic compare-and-set on
+ * the 4-byte word of the file holding the cell, and the counters are changed
+ * with atomic adds. A dig claims its location by changing it from untouched to
+ * dug, and a flood fill claims each location it reveals the same way, so two
+ * operations never both change a location's state. Removing a bomb decrements
+ * its neighbors' counts atomically.
+ *
+ * A look is an optimistic copy of the cells that is kept only if no operation
+ * was in progress in any slot while it was taken, and is shared by every look
+ * at the same version in this process. If operations never pause, a look
+ * gives up after MAX_LOOK_ATTEMPTS and returns a copy that may mix the
+ * effects of operations that overlapped it; such a copy is never shared.
+ *
+ * A process that dies part way through an operation never finishes it. Each
+ * process beats every HEARTBEAT_MILLIS in the slots it owns, and a look that
+ * keeps finding operations in progress reclaims the slot of any owner that is
+ * no longer running and has not beaten for STALE_MILLIS, taking its
+ * operations to be finished. Both must hold, so a live process that is merely
+ * paused keeps its slot, and so does one in another process id namespace;
+ * the processes sharing a board must therefore see each other's process ids.
+ */
+public class SharedBoard implements GameBoard {
+
+    private static final int MAGIC = 0x5357534D; // "MSWS"
+    private static final int FORMAT = 2;
+    private static final int WIDTH_OFFSET = 8;
+    private static final int HEIGHT_OFFSET = 12;
+    private static final int VERSION_OFFSET = 16;
+    private static final int SLOTS_OFFSET = 64;
+    /** Most processes that can map a board at once. */
+    static final int SLOTS = 16;
+    static final int SLOT_BYTES = 32;
+    static final int OWNER = 0;
+    static final int HEARTBEAT = 8;
+    static final int STARTED = 16;
+    static final int FINISHED = 24;
+    private static final int HEADER_BYTES = SLOTS_OFFSET + SLOTS * SLOT_BYTES;
+
+    /** Owner of a slot that a look is reclaiming. */
+    private static final long RECLAIMING = -1;
+
+    /** Milliseconds between heartbeats of a process's slots. */
+    private static final long HEARTBEAT_MILLIS = 1000;
+    /** Milliseconds without a heartbeat after which a dead owner's slot is reclaimed. */
+    static final long STALE_MILLIS = 5 * HEARTBEAT_MILLIS;
+
+    /** Attempts at a consistent look before settling for an inconsistent one. */
+    private static final int MAX_LOOK_ATTEMPTS = 64;
+
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int slot;
+    private final AtomicReference<BoardSnapshot> latest = new AtomicReference<>();
+
+    /*
+     * Abstraction function: AF(buffer) = the board stored in the file buffer
+     * maps, laid out as in the class comment, where location x,y is described
+     * by the cell at offset HEADER_BYTES + y * width + x. slot is the offset of
+     * the process slot this mapping counts its operations in, and latest
+     * caches the most recent look taken in this process.
+     *
+     * Rep invariant: width > 0, height > 0, buffer holds HEADER_BYTES plus
+     * width * height rounded up to a multiple of 4 bytes, and the header's
+     * dimensions are width and height. Every cell satisfies Board's invariant
+     * on its own: valid bits, and a count equal to its number of neighboring
+     * bombs once no operation is in progress. In every slot, started -
+     * finished is the number of operations in progress through it, which are
+     * abandoned if its owner has died; started never decreases. slot is a
+     * slot owned by this process until this mapping is released. If latest
+     * holds a snapshot, it is a consistent look at its version.
+     *
+     * Safety from rep exposure argument: all fields are private, and buffer is
+     * never returned. Other processes share the file by design.
+     *
+     * Thread safety argument: the header counters and the cells are only
+     * changed by atomic operations on the mapped memory, which are atomic
+     * across processes as well as threads, and read with volatile reads. A
+     * slot's owner only changes by compare-and-set, so one process claims a
+     * free slot, and one reclaims a dead owner's, which no process then
+     * counts operations in until it is free again. width, height, slot and
+     * buffer are final, the buffer's position is never used, and latest is
+     * atomic. Each thread has its own fillQueue, and the heartbeat thread
+     * only writes the heartbeats of slots this process owns.
+     */
+
+    private static class FillQueue {
+        private int[] items = new int[16];
+    }
+
+    private static final ThreadLocal<FillQueue> fillQueue = new ThreadLocal<FillQueue>() {
+        @Override
+        protected FillQueue initialValue() {
+            return new FillQueue();
+        }
+    };
+
+    /*
+     * Beats in the slot of every mapping in this process that has not been
+     * released, from a daemon thread started with the first mapping.
+     */
+    private static class Heartbeat {
+        private static final Set<SharedBoard> mappings = ConcurrentHashMap.newKeySet();
+
+        static {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        long now = System.currentTimeMillis();
+                        for (SharedBoard mapping : mappings)
+                            LONGS.setVolatile(mapping.buffer, mapping.slot + HEARTBEAT, now);
+                        try {
+                            Thread.sleep(HEARTBEAT_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "shared board heartbeat");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private SharedBoard(MappedByteBuffer buffer, int width, int height, int slot) {
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.slot = slot;
+        Heartbeat.mappings.add(this);
+    }
+
+    private static long fileSize(int width, int height) {
+        return HEADER_BYTES + (((long) width * height + 3) & ~3L);
+    }
+
+    /**
+     * Creates a shared board file holding a copy of board, with the same
+     * version, and maps it. The file is written beside its final name and then
+     * linked there, so processes opening it never see it half written, and of
+     * several processes creating the same file at once exactly one succeeds.
+     *
+     * @param file  the file to create
+     * @param board the starting board
+     * @return the board in file
+     * @throws FileAlreadyExistsException if file exists
+     * @throws IOException                if file cannot be written
+     */
+    public static SharedBoard create(File file, Board board) throws IOException {
+        int width = board.getWidth();
+        int height = board.getHeight();
+        if (fileSize(width, height) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("board of " + width + "x" + height + " is too large to share");
+        }
+        byte[] cells = new byte[width * height];
+        long version = board.copyCells(cells);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(width).putInt(height).putLong(version).clear();
+        ByteBuffer padding = ByteBuffer.allocate((int) (fileSize(width, height) - HEADER_BYTES - cells.length));
+
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer[] contents = { header, ByteBuffer.wrap(cells), padding };
+                for (long remaining = fileSize(width, height); remaining > 0;)
+                    remaining -= channel.write(contents);
+                channel.force(true);
+            }
+            Files.createLink(file.toPath(), temporary.toPath());
+        } finally {
+            Files.delete(temporary.toPath());
+        }
+        return open(file);
+    }
+
+    /**
+     * Maps an existing shared board file, taking a process slot in it until
+     * the mapping is released.
+     *
+     * @param file a file made by create
+     * @return the board in file, shared with every other process that maps it
+     * @throws IOException              if file cannot be read and written, or
+     *                                  every process slot in it is owned by a
+     *                                  live process
+     * @throws IllegalArgumentException if file is not a shared board file
+     */
+    public static SharedBoard open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + ": not a shared board file");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+                throw new IllegalArgumentException(file + ": not a shared board file");
+            }
+            int width = buffer.getInt(WIDTH_OFFSET);
+            int height = buffer.getInt(HEIGHT_OFFSET);
+            if (width <= 0 || height <= 0 || fileSize(width, height) != size) {
+                throw new IllegalArgumentException(file + ": bad shared board dimensions " + width + "x" + height);
+            }
+            int slot = claimSlot(buffer);
+            if (slot < 0) {
+                reclaimDeadSlots(buffer);
+                slot = claimSlot(buffer);
+            }
+            if (slot < 0)
+                throw new IOException(file + ": more than " + SLOTS + " processes share the board");
+            return new SharedBoard(buffer, width, height, slot);
+        }
+    }
+
+    /*
+     * Takes a free slot in buffer for this process, returning its offset, or
+     * -1 if there is none. The heartbeat is written before the slot is taken,
+     * so no look ever finds it owned with a stale heartbeat.
+     */
+    private static int claimSlot(MappedByteBuffer buffer) {
+        for (int s = 0; s < SLOTS; s++) {
+            int offset = SLOTS_OFFSET + s * SLOT_BYTES;
+            if ((long) LONGS.getVolatile(buffer, offset + OWNER) != 0)
+                continue;
+            LONGS.setVolatile(buffer, offset + HEARTBEAT, System.currentTimeMillis());
+            if (LONGS.compareAndSet(buffer, offset + OWNER, 0L, PID))
+                return offset;
+        }
+        return -1;
+    }
+
+    /*
+     * Frees the slot of every owner in buffer that is no longer running and
+     * has not beaten for STALE_MILLIS, taking the operations it left in
+     * progress to be finished. Since its owner is dead, no one else changes
+     * the slot's counters until it is free again.
+     */
+    private static void reclaimDeadSlots(MappedByteBuffer buffer) {
+        long now = System.currentTimeMillis();
+        for (int s = 0; s < SLOTS; s++) {
+            int offset = SLOTS_OFFSET + s * SLOT_BYTES;
+            long owner = (long) LONGS.getVolatile(buffer, offset + OWNER);
+            if (owner <= 0 || owner == PID
+                    || now - (long) LONGS.getVolatile(buffer, offset + HEARTBEAT) < STALE_MILLIS
+                    || ProcessHandle.of(owner).isPresent()) {
+                continue;
+            }
+            if (LONGS.compareAndSet(buffer, offset + OWNER, owner, RECLAIMING)) {
+                LONGS.setVolatile(buffer, offset + FINISHED, (long) LONGS.getVolatile(buffer, offset + STARTED));
+                LONGS.setVolatile(buffer, offset + OWNER, 0L);
+            }
+        }
+    }
+
+    /**
+     * Gives up this mapping's process slot, so that another process can map
+     * the board. The mapping must not be used afterwards, and must have no
+     * operation in progress.
+     */
+    @Override
+    public void release() {
+        if (Heartbeat.mappings.remove(this))
+            LONGS.compareAndSet(buffer, slot + OWNER, PID, 0L);
+    }
+
+    /**
+     *
+     * @return the offset in the file of this mapping's process slot
+     */
+    int getSlot() {
+        return slot;
+    }
+
+    private int index(int x, int y) {
+        return y * width + x;
+    }
+
+    private byte cell(int i) {
+        int word = (int) INTS.getVolatile(buffer, HEADER_BYTES + (i & ~3));
+        return (byte) (word >>> (8 * (i & 3)));
+    }
+
+    /*
+     * Atomically changes cell i from expected to update, returning false if it
+     * did not hold expected. Neighboring cells in the same word may change
+     * concurrently, which only makes the compare-and-set retry.
+     */
+    private boolean compareAndSetCell(int i, byte expected, byte update) {
+        int offset = HEADER_BYTES + (i & ~3);
+        int shift = 8 * (i & 3);
+        while (true) {
+            int word = (int) INTS.getVolatile(buffer, offset);
+            if ((byte) (word >>> shift) != expected)
+                return false;
+            int updated = (word & ~(0xFF << shift)) | ((update & 0xFF) << shift);
+            if (INTS.compareAndSet(buffer, offset, word, updated))
+                return true;
+        }
+    }
+
+    private long counter(int offset) {
+        return (long) LONGS.getVolatile(buffer, offset);
+    }
+
+    private void increment(int offset) {
+        LONGS.getAndAdd(buffer, offset, 1L);
+    }
+
+    /*
+     * Returns the total of the counter at offset within every slot.
+     */
+    private long total(int offset) {
+        long total = 0;
+        for (int s = 0; s < SLOTS; s++)
+            total += counter(SLOTS_OFFSET + s * SLOT_BYTES + offset);
+        return total;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean inbounds(int x, int y) {
+        return 0 <= x && x < width && 0 <= y && y < height;
+    }
+
+    @Override
+    public boolean dig(int x, int y) {
+        assert inbounds(x, y);
+        int i = index(x, y);
+        increment(slot + STARTED);
+        try {
+            byte before;
+            do {
+                before = cell(i);
+                if ((before & Board.STATE_MASK) != Board.STATE_UNTOUCHED)
+                    return false;
+            } while (!compareAndSetCell(i, before, (byte) ((before & ~Board.MINE) | Board.STATE_DUG)));
+
+            boolean boom = (before & Board.MINE) != 0;
+            if (boom)
+                removeBomb(x, y);
+            floodFill(i);
+            increment(VERSION_OFFSET);
+            return boom;
+        } finally {
+            increment(slot + FINISHED);
+        }
+    }
+
+    /*
+     * Decrements the counts of the neighbors of location x,y, whose bomb was
+     * just removed.
+     */
+    private void removeBomb(int x, int y) {
+        int maxWide = Math.min(x + 2, width);
+        int maxHigh = Math.min(y + 2, height);
+        for (int nx = Math.max(x - 1, 0); nx < maxWide; nx++) {
+            for (int ny = Math.max(y - 1, 0); ny < maxHigh; ny++) {
+                int n = index(nx, ny);
+                if (nx != x || ny != y)
+                    INTS.getAndAdd(buffer, HEADER_BYTES + (n & ~3), -(1 << (8 * (n & 3))));
+            }
+        }
+    }
+
+    /*
+     * Reveals every untouched location reachable from location start, which
+     * this thread has just dug, through revealed locations with no neighboring
+     * bombs. Each location is revealed by
+     * claiming it, so only one operation continues an opening through it. A
+     * location with no neighboring bombs has no bomb next to it to reveal,
+     * since bombs are only ever removed.
+     */
+    private void floodFill(int start) {
+        FillQueue queue = fillQueue.get();
+        int[] items = queue.items;
+        int tail = 0;
+        if ((cell(start) & Board.COUNT_MASK) == 0)
+            items[tail++] = start;
+        for (int head = 0; head < tail; head++) {
+            int cx = items[head] % width;
+            int cy = items[head] / width;
+            int maxWide = Math.min(cx + 2, width);
+            int maxHigh = Math.min(cy + 2, height);
+            for (int nx = Math.max(cx - 1, 0); nx < maxWide; nx++) {
+                for (int ny = Math.max(cy - 1, 0); ny < maxHigh; ny++) {
+                    int n = index(nx, ny);
+                    byte before = cell(n);
+                    while ((before & Board.STATE_MASK) == Board.STATE_UNTOUCHED
+                            && !compareAndSetCell(n, before, (byte) (before | Board.STATE_DUG))) {
+                        before = cell(n);
+                    }
+                    if ((before & Board.STATE_MASK) == Board.STATE_UNTOUCHED
+                            && (before & Board.COUNT_MASK) == 0) {
+                        if (tail == items.length) {
+                            items = Arrays.copyOf(items, Math.min(tail * 2, width * height));
+                            queue.items = items;
+                        }
+                        items[tail++] = n;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean flag(int x, int y) {
+        return changeState(x, y, Board.STATE_UNTOUCHED, Board.STATE_FLAGGED);
+    }
+
+    @Override
+    public boolean deflag(int x, int y) {
+        return changeState(x, y, Board.STATE_FLAGGED, Board.STATE_UNTOUCHED);
+    }
+
+    private boolean changeState(int x, int y, int from, int to) {
+        assert inbounds(x, y);
+        int i = index(x, y);
+        increment(slot + STARTED);
+        try {
+            byte before;
+            do {
+                before = cell(i);
+                if ((before & Board.STATE_MASK) != from)
+                    return false;
+            } while (!compareAndSetCell(i, before, (byte) ((before & ~Board.STATE_MASK) | to)));
+            increment(VERSION_OFFSET);
+            return true;
+        } finally {
+            increment(slot + FINISHED);
+        }
+    }
+
+    @Override
+    public char status(int x, int y) {
+        return Board.statusOf(cell(index(x, y)));
+    }
+
+    /**
+     *
+     * @param x must be within board width bounds
+     * @param y must be within board height bounds
+     * @return true if location x,y has a bomb
+     */
+    boolean mineAt(int x, int y) {
+        return (cell(index(x, y)) & Board.MINE) != 0;
+    }
+
+    @Override
+    public long getVersion() {
+        return counter(VERSION_OFFSET);
+    }
+
+    /**
+     * Takes a snapshot of this board, as described in the class comment. If
+     * no consistent look can be had within MAX_LOOK_ATTEMPTS, the snapshot
+     * returned may be torn: it may show part of an operation that overlapped
+     * it, and is not cached.
+     *
+     * @return a snapshot of this board as of some version at least as recent as
+     *         every operation that completed before this call
+     */
+    @Override
+    public BoardSnapshot snapshot() {
+        byte[] cells = null;
+        for (int attempt = 0; attempt < MAX_LOOK_ATTEMPTS; attempt++) {
+            long started = total(STARTED);
+            long finished = total(FINISHED);
+            long current = counter(VERSION_OFFSET);
+            if (started == finished) {
+                BoardSnapshot cached = latest.get();
+                if (cached != null && cached.getVersion() == current)
+                    return cached;
+
+                if (cells == null)
+                    cells = new byte[width * height];
+                buffer.get(HEADER_BYTES, cells, 0, cells.length);
+                VarHandle.acquireFence();
+                if (total(STARTED) == started)
+                    return publish(new BoardSnapshot(current, width, height, render(cells)));
+            } else if (attempt == MAX_LOOK_ATTEMPTS / 2) {
+                reclaimDeadSlots(buffer);
+            }
+            Thread.yield();
+        }
+
+        // may mix the effects of operations that overlapped it, so not shared
+        if (cells == null)
+            cells = new byte[width * height];
+        long current = counter(VERSION_OFFSET);
+        buffer.get(HEADER_BYTES, cells, 0, cells.length);
+        return new BoardSnapshot(current, width, height, render(cells));
+    }
+
+    private String render(byte[] cells) {
+        byte[] text = new byte[2 * cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            char c = Board.statusOf(cells[i]);
+            text[2 * i] = (byte) (c != '0' ? c : ' ');
+            text[2 * i + 1] = (byte) ((i + 1) % width != 0 ? ' ' : '\n');
+        }
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    private BoardSnapshot publish(BoardSnapshot snapshot) {
+        BoardSnapshot cached = latest.get();
+        while ((cached == null || cached.getVersion() < snapshot.getVersion())
+                && !latest.compareAndSet(cached, snapshot)) {
+            cached = latest.get();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
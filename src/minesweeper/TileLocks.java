@@ -0,0 +1,221 @@
+package minesweeper;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock striping for a board of width by height locations: the board is divided
+ * into square tiles of tileSize by tileSize locations, each guarded by its own
+ * lock, and each thread keeps track of the set of tiles it currently holds.
+ *
+ * A thread only ever blocks on a tile whose index is greater than that of every
+ * tile it already holds, so threads can never deadlock. When a thread needs a
+ * tile with a smaller index it tries to take it without blocking, and if that
+ * fails it is told so and keeps what it holds: an operation never lets go of a
+ * tile part way through, so it is atomic over its tiles. An operation that is
+ * refused a tile must release everything and start over, and can then take
+ * every tile it learned it needs up front, in ascending order.
+ */
+class TileLocks {
+
+    private final ReentrantLock[] locks;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesWide;
+
+    /*
+     * Abstraction function: AF(locks, tileSize) = the tiles of the board, where
+     * tile number ty * tilesWide + tx covers the locations x,y with x / tileSize
+     * = tx and y / tileSize = ty, and is guarded by locks[ty * tilesWide + tx].
+     * AF(held) = the tiles the calling thread holds.
+     *
+     * Rep invariant: tileSize > 0, tilesWide * tileSize >= width, and locks
+     * covers every location of the board. For every thread, held.tiles[0..count)
+     * is strictly ascending and lists exactly the tiles whose locks the thread
+     * holds through this object.
+     *
+     * Thread safety argument: locks, width, height, tileSize and tilesWide are
+     * never reassigned after construction, and each thread only reads and writes
+     * its own held set.
+     */
+
+    private static class Held {
+        private int[] tiles = new int[8];
+        private int count = 0;
+    }
+
+    private final ThreadLocal<Held> held = new ThreadLocal<Held>() {
+        @Override
+        protected Held initialValue() {
+            return new Held();
+        }
+    };
+
+    /**
+     * Creates the locks for a board.
+     *
+     * @param width    width of the board, must be greater than 0
+     * @param height   height of the board, must be greater than 0
+     * @param tileSize side length of each tile, must be greater than 0
+     */
+    TileLocks(int width, int height, int tileSize) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        tilesWide = (width + tileSize - 1) / tileSize;
+        int tilesHigh = (height + tileSize - 1) / tileSize;
+        locks = new ReentrantLock[tilesWide * tilesHigh];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     *
+     * @return the number of tiles the board is divided into
+     */
+    int tileCount() {
+        return locks.length;
+    }
+
+    private int tileOf(int x, int y) {
+        return (y / tileSize) * tilesWide + x / tileSize;
+    }
+
+    /**
+     * Acquires every tile overlapping the locations minX <= x <= maxX, minY <= y
+     * <= maxY that lie on the board. Requires that the calling thread holds no
+     * tile.
+     */
+    void lockRegion(int minX, int minY, int maxX, int maxY) {
+        assert held.get().count == 0;
+        int minTileX = Math.max(minX, 0) / tileSize;
+        int maxTileX = Math.min(maxX, width - 1) / tileSize;
+        int minTileY = Math.max(minY, 0) / tileSize;
+        int maxTileY = Math.min(maxY, height - 1) / tileSize;
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                acquire(ty * tilesWide + tx);
+            }
+        }
+    }
+
+    /**
+     * Acquires the tile containing location x,y. Requires that the calling
+     * thread holds no tile.
+     */
+    void lock(int x, int y) {
+        assert held.get().count == 0;
+        acquire(tileOf(x, y));
+    }
+
+    /**
+     * Acquires the tile containing location x,y, if not already held, unless
+     * that would mean waiting for a tile with a smaller index than one the
+     * calling thread holds.
+     *
+     * @return true if the calling thread now holds the tile, false if it was
+     *         busy and nothing changed
+     */
+    boolean tryLock(int x, int y) {
+        return acquire(tileOf(x, y));
+    }
+
+    /**
+     * Acquires every tile of the board. Requires that the calling thread holds
+     * no tile.
+     */
+    void lockAll() {
+        assert held.get().count == 0;
+        for (int tile = 0; tile < locks.length; tile++)
+            acquire(tile);
+    }
+
+    /**
+     *
+     * @param x coordinate of a location on the board
+     * @param y coordinate of a location on the board
+     * @return the tiles the calling thread holds together with the tile
+     *         containing location x,y, in ascending order, for lockTiles
+     */
+    int[] heldWith(int x, int y) {
+        Held h = held.get();
+        int tile = tileOf(x, y);
+        int position = indexOf(h, tile);
+        if (position >= 0)
+            return Arrays.copyOf(h.tiles, h.count);
+        position = -position - 1;
+        int[] result = new int[h.count + 1];
+        System.arraycopy(h.tiles, 0, result, 0, position);
+        result[position] = tile;
+        System.arraycopy(h.tiles, position, result, position + 1, h.count - position);
+        return result;
+    }
+
+    /**
+     * Acquires the given tiles. Requires that the calling thread holds no tile.
+     *
+     * @param tiles tiles as returned by heldWith, in ascending order
+     */
+    void lockTiles(int[] tiles) {
+        assert held.get().count == 0;
+        for (int tile : tiles)
+            acquire(tile);
+    }
+
+    /**
+     *
+     * @return true if the calling thread holds the tile containing location x,y
+     */
+    boolean holds(int x, int y) {
+        Held h = held.get();
+        return indexOf(h, tileOf(x, y)) >= 0;
+    }
+
+    /**
+     * Releases every tile the calling thread holds.
+     */
+    void unlock() {
+        Held h = held.get();
+        for (int i = 0; i < h.count; i++)
+            locks[h.tiles[i]].unlock();
+        h.count = 0;
+    }
+
+    /*
+     * Acquires tile unless it is held already, blocking only if its index is
+     * greater than every tile held. Returns false if it could not be taken
+     * without blocking otherwise.
+     */
+    private boolean acquire(int tile) {
+        Held h = held.get();
+        int position = indexOf(h, tile);
+        if (position >= 0)
+            return true;
+
+        if (h.count == 0 || tile > h.tiles[h.count - 1]) {
+            locks[tile].lock();
+            insert(h, tile, h.count);
+        } else if (locks[tile].tryLock()) {
+            insert(h, tile, -position - 1);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Returns the position of tile in h, or (-(insertion point) - 1) if absent.
+     */
+    private static int indexOf(Held h, int tile) {
+        return Arrays.binarySearch(h.tiles, 0, h.count, tile);
+    }
+
+    private static void insert(Held h, int tile, int position) {
+        if (h.count == h.tiles.length)
+            h.tiles = Arrays.copyOf(h.tiles, h.count * 2);
+        System.arraycopy(h.tiles, position, h.tiles, position + 1, h.count - position);
+        h.tiles[position] = tile;
+        h.count++;
+    }
+}
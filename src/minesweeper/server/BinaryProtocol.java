@@ -0,0 +1,357 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import minesweeper.server.Command.Kind;
+
+/**
+ * The compact binary form of the Minesweeper protocol, served on the server's
+ * binary port alongside the text protocol. Both protocols play the same board
+ * and count the same players.
+ *
+ * Every message in either direction is a frame: its length in bytes as a
+ * VARINT, then that many bytes, starting with a 1-byte opcode.
+ *
+ * <pre>
+ *   FRAME ::= VARINT(length of OPCODE ARGS) OPCODE ARGS
+ *   VARINT ::= an unsigned LEB128 integer: 7 bits per byte, least significant
+ *              first, high bit set on every byte but the last, at most 5 bytes
+ *
+ *   requests                             responses
+ *   0x01 look                            0x80 hello   VARINT players VARINT width VARINT height
+ *   0x02 dig    VARINT x VARINT y        0x81 board   VARINT width VARINT height CELLS
+ *   0x03 flag   VARINT x VARINT y        0x82 boom
+ *   0x04 deflag VARINT x VARINT y        0x83 help    UTF-8 text
+ *   0x05 help                            0x84 update  VARINT count (VARINT x VARINT y CELL)*
+ *   0x06 bye
+ *   0x07 subscribe
+ * </pre>
+ *
+ * CELLS holds 4 bits per location in row-major order, the first of each pair
+ * of locations in the high half of its byte: 0 to 8 for a dug location with
+ * that many neighboring bombs, UNTOUCHED_CELL, or FLAGGED_CELL. The last byte
+ * is padded with 0 if the board has an odd number of locations. An update
+ * lists count locations that have changed, each with its new value in a byte
+ * CELL of its own.
+ *
+ * Subscribe is answered with a board, after which the server pushes update
+ * frames, and sometimes board frames, between its responses; see
+ * MinesweeperServer for when.
+ *
+ * A request frame with an unknown opcode or the wrong arguments is answered
+ * with help, as an invalid text request is. A request frame longer than
+ * MAX_REQUEST_BYTES, or a length that is not a VARINT, ends the connection.
+ * Coordinates above Integer.MAX_VALUE saturate to it.
+ */
+final class BinaryProtocol {
+
+    static final byte LOOK = 0x01;
+    static final byte DIG = 0x02;
+    static final byte FLAG = 0x03;
+    static final byte DEFLAG = 0x04;
+    static final byte HELP = 0x05;
+    static final byte BYE = 0x06;
+    static final byte SUBSCRIBE = 0x07;
+
+    static final byte HELLO_RESPONSE = (byte) 0x80;
+    static final byte BOARD_RESPONSE = (byte) 0x81;
+    static final byte BOOM_RESPONSE = (byte) 0x82;
+    static final byte HELP_RESPONSE = (byte) 0x83;
+    static final byte UPDATE_RESPONSE = (byte) 0x84;
+
+    /** Cell value of an untouched location. */
+    static final int UNTOUCHED_CELL = 0x9;
+    /** Cell value of a flagged location. */
+    static final int FLAGGED_CELL = 0xA;
+
+    /** Most bytes in a request frame after its length. */
+    static final int MAX_REQUEST_BYTES = 16;
+    /** Most bytes in a VARINT. */
+    static final int MAX_VARINT_BYTES = 5;
+
+    private BinaryProtocol() {
+        // not instantiable
+    }
+
+    /**
+     * Decodes the body of a request frame, its opcode and arguments.
+     *
+     * @param frame   the bytes, not modified
+     * @param from    index of the opcode
+     * @param to      index just past the frame, requires 0 <= from <= to <=
+     *                frame.length
+     * @param command set to the request, or to an invalid one if the body is
+     *                malformed
+     * @return command
+     */
+    static Command decode(byte[] frame, int from, int to, Command command) {
+        if (from == to)
+            return command.set(Kind.INVALID, 0, 0);
+        Kind kind;
+        switch (frame[from]) {
+        case LOOK:
+            kind = Kind.LOOK;
+            break;
+        case HELP:
+            kind = Kind.HELP;
+            break;
+        case BYE:
+            kind = Kind.BYE;
+            break;
+        case SUBSCRIBE:
+            kind = Kind.SUBSCRIBE;
+            break;
+        case DIG:
+            kind = Kind.DIG;
+            break;
+        case FLAG:
+            kind = Kind.FLAG;
+            break;
+        case DEFLAG:
+            kind = Kind.DEFLAG;
+            break;
+        default:
+            return command.set(Kind.INVALID, 0, 0);
+        }
+        if (kind != Kind.DIG && kind != Kind.FLAG && kind != Kind.DEFLAG)
+            return command.set(to - from == 1 ? kind : Kind.INVALID, 0, 0);
+
+        long x = readVarint(frame, from + 1, to);
+        int at = varintEnd(frame, from + 1, to);
+        long y = at < 0 ? -1 : readVarint(frame, at, to);
+        if (x < 0 || y < 0 || varintEnd(frame, at, to) != to)
+            return command.set(Kind.INVALID, 0, 0);
+        return command.set(kind, (int) Math.min(x, Integer.MAX_VALUE), (int) Math.min(y, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Reads a VARINT.
+     *
+     * @param bytes the bytes, not modified
+     * @param from  index of its first byte
+     * @param to    index just past the last byte it may use
+     * @return its value, or -1 if bytes from index from do not start with a
+     *         VARINT before index to
+     */
+    static long readVarint(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES && from + i < to; i++) {
+            byte b = bytes[from + i];
+            value |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0)
+                return value;
+        }
+        return -1;
+    }
+
+    /*
+     * Returns the index just past the VARINT starting at index from, or -1 if
+     * there is none before index to.
+     */
+    private static int varintEnd(byte[] bytes, int from, int to) {
+        for (int i = 0; i < MAX_VARINT_BYTES && from + i < to; i++)
+            if (bytes[from + i] >= 0)
+                return from + i + 1;
+        return -1;
+    }
+
+    /**
+     *
+     * @param value requires value >= 0
+     * @return the number of bytes in the VARINT for value
+     */
+    static int varintLength(long value) {
+        int length = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a VARINT.
+     *
+     * @param value requires 0 <= value < 2^35
+     * @param bytes the array to write into
+     * @param at    index of its first byte, requires room for varintLength(value)
+     *              bytes
+     * @return the index just past it
+     */
+    static int writeVarint(long value, byte[] bytes, int at) {
+        while (value >= 0x80) {
+            bytes[at++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        bytes[at++] = (byte) value;
+        return at;
+    }
+
+    /*
+     * Returns a frame of the given body length with its length and opcode
+     * written, and puts the index of the byte after the opcode in at[0].
+     */
+    private static byte[] frame(byte opcode, int bodyLength, int[] at) {
+        int length = 1 + bodyLength;
+        byte[] frame = new byte[varintLength(length) + length];
+        int i = writeVarint(length, frame, 0);
+        frame[i++] = opcode;
+        at[0] = i;
+        return frame;
+    }
+
+    /**
+     *
+     * @param players the number of connected players, including the new one
+     * @param width   the width of the board
+     * @param height  the height of the board
+     * @return the hello frame
+     */
+    static byte[] hello(int players, int width, int height) {
+        int[] at = new int[1];
+        byte[] frame = frame(HELLO_RESPONSE, varintLength(players) + varintLength(width) + varintLength(height), at);
+        writeVarint(height, frame, writeVarint(width, frame, writeVarint(players, frame, at[0])));
+        return frame;
+    }
+
+    /**
+     *
+     * @return a new boom frame
+     */
+    static byte[] boom() {
+        return frame(BOOM_RESPONSE, 0, new int[1]);
+    }
+
+    /**
+     *
+     * @param text the help message
+     * @return a new help frame holding text
+     */
+    static byte[] help(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        int[] at = new int[1];
+        byte[] frame = frame(HELP_RESPONSE, utf8.length, at);
+        System.arraycopy(utf8, 0, frame, at[0], utf8.length);
+        return frame;
+    }
+
+    /**
+     *
+     * @param width  the width of a board
+     * @param height the height of the board
+     * @return the number of bytes in the board frame for it
+     */
+    static int boardFrameLength(int width, int height) {
+        int length = boardBodyLength(width, height);
+        return varintLength(length) + length;
+    }
+
+    /*
+     * Returns the number of bytes in a board frame after its length.
+     */
+    private static int boardBodyLength(int width, int height) {
+        return 1 + varintLength(width) + varintLength(height) + (int) (((long) width * height + 1) / 2);
+    }
+
+    /**
+     * Encodes a board frame from the board's rendering in the format of the
+     * look command.
+     *
+     * @param rendering what the board's toString returned
+     * @param width     the width of the board
+     * @param height    the height of the board, requires rendering to have a
+     *                  character and a separator for each of the width * height
+     *                  locations
+     * @param frame     the buffer to write the frame into, from index 0 on,
+     *                  without changing its position; requires room for
+     *                  boardFrameLength(width, height) bytes
+     */
+    static void board(String rendering, int width, int height, ByteBuffer frame) {
+        long cells = (long) width * height;
+        int i = writeVarint(boardBodyLength(width, height), frame, 0);
+        frame.put(i++, BOARD_RESPONSE);
+        i = writeVarint(height, frame, writeVarint(width, frame, i));
+        for (int cell = 0; cell < cells; cell += 2) {
+            int high = cell(rendering.charAt(2 * cell));
+            int low = cell + 1 < cells ? cell(rendering.charAt(2 * cell + 2)) : 0;
+            frame.put(i++, (byte) (high << 4 | low));
+        }
+    }
+
+    /**
+     *
+     * @param changed indices in row-major order of the locations in an update
+     * @param count   the number of locations, the first count of changed
+     * @param width   the width of the board, requires width > 0
+     * @return the number of bytes in the update frame for them
+     */
+    static int updateFrameLength(int[] changed, int count, int width) {
+        long length = updateBodyLength(changed, count, width);
+        return length > Integer.MAX_VALUE - MAX_VARINT_BYTES ? Integer.MAX_VALUE
+                : varintLength(length) + (int) length;
+    }
+
+    /*
+     * Returns the number of bytes in an update frame after its length.
+     */
+    private static long updateBodyLength(int[] changed, int count, int width) {
+        long length = 1 + varintLength(count);
+        for (int i = 0; i < count; i++)
+            length += varintLength(changed[i] % width) + varintLength(changed[i] / width) + 1;
+        return length;
+    }
+
+    /**
+     * Encodes an update frame from a board's rendering in the format of the
+     * look command.
+     *
+     * @param changed   indices in row-major order of the locations to list
+     * @param count     the number of locations, the first count of changed
+     * @param rendering what the board's toString returned, giving the new
+     *                  value of each location
+     * @param width     the width of the board, requires width > 0
+     * @param frame     the buffer to write the frame into, from index 0 on,
+     *                  without changing its position; requires room for
+     *                  updateFrameLength(changed, count, width) bytes, which
+     *                  must be less than Integer.MAX_VALUE
+     */
+    static void update(int[] changed, int count, String rendering, int width, ByteBuffer frame) {
+        int i = writeVarint(updateBodyLength(changed, count, width), frame, 0);
+        frame.put(i++, UPDATE_RESPONSE);
+        i = writeVarint(count, frame, i);
+        for (int j = 0; j < count; j++) {
+            i = writeVarint(changed[j] / width, frame, writeVarint(changed[j] % width, frame, i));
+            frame.put(i++, (byte) cell(rendering.charAt(2 * changed[j])));
+        }
+    }
+
+    /*
+     * Writes a VARINT into buffer at index at, returning the index just past
+     * it.
+     */
+    private static int writeVarint(long value, ByteBuffer buffer, int at) {
+        while (value >= 0x80) {
+            buffer.put(at++, (byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(at++, (byte) value);
+        return at;
+    }
+
+    /*
+     * Returns the 4-bit value of a location rendered as c.
+     */
+    private static int cell(char c) {
+        switch (c) {
+        case '-':
+            return UNTOUCHED_CELL;
+        case 'F':
+            return FLAGGED_CELL;
+        case ' ':
+            return 0;
+        default:
+            return c - '0';
+        }
+    }
+}
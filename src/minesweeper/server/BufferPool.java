@@ -0,0 +1,109 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, in power-of-two capacities from MIN_CAPACITY
+ * to MAX_CAPACITY, so that responses can be encoded outside the heap without
+ * allocating native memory for each. Buffers larger than MAX_CAPACITY are
+ * allocated when asked for and left to the garbage collector when released.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 26;
+    /** Smallest capacity of a pooled buffer. */
+    static final int MIN_CAPACITY = 1 << MIN_SHIFT;
+    /** Largest capacity of a pooled buffer. */
+    static final int MAX_CAPACITY = 1 << MAX_SHIFT;
+
+    private final int maxIdle;
+    private final List<Queue<ByteBuffer>> idle = new ArrayList<>();
+    private final List<AtomicInteger> idleCounts = new ArrayList<>();
+
+    /*
+     * Abstraction function: AF(idle) = a pool holding, for each capacity
+     * 2^(MIN_SHIFT + i), the buffers in idle.get(i), ready to be handed out.
+     *
+     * Rep invariant: idle and idleCounts have one entry for each shift from
+     * MIN_SHIFT to MAX_SHIFT. Every buffer in idle.get(i) is direct with
+     * capacity 2^(MIN_SHIFT + i), idle.get(i) holds at most maxIdle buffers,
+     * and idleCounts.get(i) is at least how many it holds.
+     *
+     * Safety from rep exposure argument: the lists are private and never
+     * returned. Buffers belong to the caller from acquire until release.
+     *
+     * Thread safety argument: the lists are never changed after construction,
+     * and the queues and counts in them are threadsafe. A count is raised
+     * before its buffer is added and lowered after one is removed, so it never
+     * undercounts, and a release that raises it past maxIdle lowers it again
+     * without adding its buffer.
+     */
+
+    /**
+     * Makes an empty pool.
+     *
+     * @param maxIdle the most buffers of each capacity to keep idle, must be >=
+     *                0
+     */
+    BufferPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            idle.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            idleCounts.add(new AtomicInteger());
+        }
+    }
+
+    /*
+     * Returns the index in idle of the smallest capacity that holds length
+     * bytes, or -1 if none does.
+     */
+    private static int sizeClass(int length) {
+        if (length > MAX_CAPACITY)
+            return -1;
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none is idle.
+     *
+     * @param length the number of bytes needed, must be >= 0
+     * @return a direct buffer, owned by the caller until it is released, with
+     *         position 0 and limit length; its contents are undefined
+     */
+    ByteBuffer acquire(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0)
+            return ByteBuffer.allocateDirect(length);
+        ByteBuffer buffer = idle.get(sizeClass).poll();
+        if (buffer != null)
+            idleCounts.get(sizeClass).decrementAndGet();
+        else
+            buffer = ByteBuffer.allocateDirect(1 << (MIN_SHIFT + sizeClass));
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it, or any view
+     * of it, afterwards.
+     *
+     * @param buffer a buffer from acquire, not yet released
+     */
+    void release(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != 1 << (MIN_SHIFT + sizeClass))
+            return;
+        if (idleCounts.get(sizeClass).incrementAndGet() > maxIdle) {
+            idleCounts.get(sizeClass).decrementAndGet();
+            return;
+        }
+        idle.get(sizeClass).add(buffer);
+    }
+}
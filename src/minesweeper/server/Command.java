@@ -0,0 +1,231 @@
+package minesweeper.server;
+
+/**
+ * A mutable, reusable request from a client: the kind of command and, for
+ * dig, flag and deflag, the coordinates it names. A Command is decoded in
+ * place from a request line, either bytes as read from a connection or a
+ * string, without allocating, so one Command can serve every request of a
+ * connection.
+ *
+ * A line decodes to the command it spells out in the grammar
+ *
+ * <pre>
+ *   REQUEST ::= "look" | "help" | "bye" | "subscribe" | ("dig" | "flag" | "deflag") " " INT " " INT
+ *   INT ::= "-"? [0-9]+
+ * </pre>
+ *
+ * and to INVALID if it does not match. Coordinates too large for an int are
+ * saturated to Integer.MIN_VALUE or Integer.MAX_VALUE, so that they are
+ * still outside every board.
+ */
+final class Command {
+
+    /** The kinds of request a client can make. */
+    enum Kind {
+        LOOK, HELP, BYE, SUBSCRIBE, DIG, FLAG, DEFLAG, INVALID
+    }
+
+    private Kind kind = Kind.INVALID;
+    private int x = 0;
+    private int y = 0;
+
+    // the line being decoded: exactly one of bytes and chars is non-null
+    // during decode, and both are null otherwise
+    private byte[] bytes = null;
+    private CharSequence chars = null;
+    // value of the last INT read by number
+    private int parsed = 0;
+
+    /*
+     * Abstraction function: AF(kind, x, y) = the request of the given kind,
+     * naming location x,y if kind is DIG, FLAG or DEFLAG.
+     *
+     * Rep invariant: kind is non-null, and x == y == 0 unless kind is DIG, FLAG
+     * or DEFLAG. bytes and chars are null outside decode.
+     *
+     * Safety from rep exposure argument: all fields are private, kind is an
+     * immutable enum and x and y are primitive; the line being decoded is
+     * never kept once decode returns.
+     *
+     * Thread safety argument: not threadsafe. Each Command must be confined
+     * to one thread at a time.
+     */
+
+    /**
+     * Decodes a request line from bytes, each taken as one character.
+     *
+     * @param line the bytes, not modified
+     * @param from index of the first byte of the line
+     * @param to   index just past its last byte, requires 0 <= from <= to <=
+     *             line.length
+     * @return this command, set to the request the line spells out
+     */
+    Command decode(byte[] line, int from, int to) {
+        bytes = line;
+        try {
+            parse(from, to);
+        } finally {
+            bytes = null;
+        }
+        return this;
+    }
+
+    /**
+     * Decodes a request line.
+     *
+     * @param line the line, without its line terminator
+     * @return this command, set to the request the line spells out
+     */
+    Command decode(CharSequence line) {
+        chars = line;
+        try {
+            parse(0, line.length());
+        } finally {
+            chars = null;
+        }
+        return this;
+    }
+
+    /**
+     * Sets this command to a request decoded some other way, as from the
+     * binary protocol.
+     *
+     * @param kind the kind of request
+     * @param x    the column it names, ignored unless kind is DIG, FLAG or
+     *             DEFLAG
+     * @param y    the row it names, ignored unless kind is DIG, FLAG or DEFLAG
+     * @return this command
+     */
+    Command set(Kind kind, int x, int y) {
+        boolean located = kind == Kind.DIG || kind == Kind.FLAG || kind == Kind.DEFLAG;
+        this.kind = kind;
+        this.x = located ? x : 0;
+        this.y = located ? y : 0;
+        return this;
+    }
+
+    /**
+     *
+     * @return the kind of this request
+     */
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     *
+     * @return the column this request names, or 0 if it names no location
+     */
+    int getX() {
+        return x;
+    }
+
+    /**
+     *
+     * @return the row this request names, or 0 if it names no location
+     */
+    int getY() {
+        return y;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+        case DIG:
+        case FLAG:
+        case DEFLAG:
+            return kind.name().toLowerCase() + " " + x + " " + y;
+        default:
+            return kind.name().toLowerCase();
+        }
+    }
+
+    private char charAt(int i) {
+        return bytes != null ? (char) (bytes[i] & 0xFF) : chars.charAt(i);
+    }
+
+    /*
+     * Returns true if the characters from index from on start with word.
+     */
+    private boolean startsWith(int from, int to, String word) {
+        if (to - from < word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++)
+            if (charAt(from + i) != word.charAt(i))
+                return false;
+        return true;
+    }
+
+    private boolean equals(int from, int to, String word) {
+        return to - from == word.length() && startsWith(from, to, word);
+    }
+
+    private void parse(int from, int to) {
+        kind = Kind.INVALID;
+        x = 0;
+        y = 0;
+
+        if (equals(from, to, "look")) {
+            kind = Kind.LOOK;
+            return;
+        } else if (equals(from, to, "help")) {
+            kind = Kind.HELP;
+            return;
+        } else if (equals(from, to, "bye")) {
+            kind = Kind.BYE;
+            return;
+        } else if (equals(from, to, "subscribe")) {
+            kind = Kind.SUBSCRIBE;
+            return;
+        }
+
+        Kind located;
+        int at;
+        if (startsWith(from, to, "dig ")) {
+            located = Kind.DIG;
+            at = from + 4;
+        } else if (startsWith(from, to, "flag ")) {
+            located = Kind.FLAG;
+            at = from + 5;
+        } else if (startsWith(from, to, "deflag ")) {
+            located = Kind.DEFLAG;
+            at = from + 7;
+        } else {
+            return;
+        }
+
+        at = number(at, to);
+        if (at < 0 || at == to || charAt(at) != ' ')
+            return;
+        int column = parsed;
+        if (number(at + 1, to) != to)
+            return;
+        kind = located;
+        x = column;
+        y = parsed;
+    }
+
+    /*
+     * Reads an INT starting at index at into parsed, saturating it to the
+     * range of int. Returns the index just past it, or -1 if there is no INT
+     * at index at.
+     */
+    private int number(int at, int to) {
+        boolean negative = at < to && charAt(at) == '-';
+        if (negative)
+            at++;
+        int start = at;
+        long value = 0;
+        for (; at < to; at++) {
+            char c = charAt(at);
+            if (c < '0' || c > '9')
+                break;
+            if (value <= Integer.MAX_VALUE)
+                value = 10 * value + (c - '0');
+        }
+        if (at == start)
+            return -1;
+        parsed = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, negative ? -value : value));
+        return at;
+    }
+}
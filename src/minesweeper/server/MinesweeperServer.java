@@ -2,12 +2,29 @@ package minesweeper.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import minesweeper.Board;
+import minesweeper.BoardJournal;
+import minesweeper.BoardSnapshot;
+import minesweeper.ChunkedBoard;
+import minesweeper.GameBoard;
+import minesweeper.SharedBoard;
 
 /**
  * Multiplayer Minesweeper server.
@@ -25,13 +42,170 @@ public class MinesweeperServer {
     private static final int DEFAULT_SIZE = 10;
     /** Default probability of a mine in any given space */
     private static final double probabilityMine = 0.25;
-    // Number of threads needed to respond
-    private static final int NUMBER_RESPONSE_THREADS = 10; 
-    
-    BlockingQueue <ClientRequest> clientRequests;
-    Map <Socket, PrintWriter> clients; 
+    /** Milliseconds between snapshots of the board when journaling. */
+    private static final long SNAPSHOT_MILLIS = 60_000;
+    /** Number of threads handling requests on platform threads in BLOCKING mode. */
+    private static final int HANDLER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /**
+     * Most requests of one client read but not yet answered before its
+     * requests stop being read.
+     */
+    static final int MAX_PENDING_REQUESTS = 1024;
+    /** Most chunks of a --chunked board held in memory. */
+    private static final int CHUNKED_RESIDENT = 4096;
+    /** Number of event loops serving connections in NIO mode. */
+    private static final int NIO_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * How a server talks to its clients: BLOCKING serves each connection from a
+     * thread of its own, and NIO serves every connection from a few event loops
+     * with non-blocking I/O.
+     */
+    public enum IoMode {
+        BLOCKING, NIO
+    }
+
+    /**
+     * Which threads serve connections in BLOCKING mode: PLATFORM threads, each
+     * with a stack of its own, or VIRTUAL threads, which cost a few kilobytes
+     * while blocked in a read, so that tens of thousands of idle clients can
+     * stay connected. VIRTUAL needs Java 21 or later and falls back to PLATFORM
+     * on earlier versions.
+     */
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
+
+    /**
+     * How to run a MinesweeperServer: the board it plays on, the ports it
+     * listens on, whether it is in debug mode, and how it serves connections.
+     * Each setter returns the options, so that they can be chained:
+     * 
+     * <pre>
+     * new Options(board).port(4444).binaryPort(4445).io(IoMode.NIO)
+     * </pre>
+     * 
+     * Options not set keep their defaults: port DEFAULT_PORT, no binary port,
+     * debug off, BLOCKING I/O and PLATFORM threads.
+     */
+    public static final class Options {
+
+        private final GameBoard board;
+        private int port = DEFAULT_PORT;
+        private OptionalInt binaryPort = OptionalInt.empty();
+        private boolean debug = false;
+        private IoMode io = IoMode.BLOCKING;
+        private ThreadMode threads = ThreadMode.PLATFORM;
+
+        /*
+         * Abstraction function: AF(board, port, binaryPort, debug, io, threads)
+         * = a server playing on board, serving the text protocol on port and
+         * the binary protocol on binaryPort if it is present, disconnecting a
+         * client after a BOOM message unless debug, and serving connections
+         * as io and threads say.
+         *
+         * Rep invariant: board, binaryPort, io and threads are non-null, 0 <=
+         * port <= MAXIMUM_PORT, and 0 <= binaryPort <= MAXIMUM_PORT if it is
+         * present.
+         *
+         * Safety from rep exposure argument: all fields are private, and are
+         * immutable or primitive except board, which is the board the server
+         * is meant to share with whoever made the options.
+         *
+         * Thread safety argument: not threadsafe. Options must be confined to
+         * the thread setting them until they are passed to a server, which
+         * reads them once, in its constructor.
+         */
+
+        /**
+         * Makes the default options for a server playing on board.
+         * 
+         * @param board the board all clients play on; the server does not
+         *              release it, so the caller must once the server is done
+         *              with it
+         */
+        public Options(GameBoard board) {
+            this.board = Objects.requireNonNull(board);
+            checkRep();
+        }
+
+        private void checkRep() {
+            assert board != null && binaryPort != null && io != null && threads != null;
+            assert port >= 0 && port <= MAXIMUM_PORT;
+            assert !binaryPort.isPresent() || binaryPort.getAsInt() >= 0 && binaryPort.getAsInt() <= MAXIMUM_PORT;
+        }
+
+        /**
+         * Sets the port the server listens on for the text protocol.
+         * 
+         * @param port port number, requires 0 <= port <= 65535 and port other
+         *             than the binary port, if any
+         * @return these options
+         */
+        public Options port(int port) {
+            this.port = port;
+            checkRep();
+            return this;
+        }
+
+        /**
+         * Sets a port the server also listens on, for the binary protocol.
+         * 
+         * @param binaryPort port number, requires 0 <= binaryPort <= 65535 and
+         *                   binaryPort other than the text protocol's port
+         * @return these options
+         */
+        public Options binaryPort(int binaryPort) {
+            this.binaryPort = OptionalInt.of(binaryPort);
+            checkRep();
+            return this;
+        }
+
+        /**
+         * Sets whether the server is in debug mode.
+         * 
+         * @param debug true if the server should not disconnect a client after
+         *              a BOOM message
+         * @return these options
+         */
+        public Options debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * Sets how the server serves text protocol connections.
+         * 
+         * @param io the I/O mode, requires it not be NIO if the thread mode
+         *           is VIRTUAL
+         * @return these options
+         */
+        public Options io(IoMode io) {
+            this.io = Objects.requireNonNull(io);
+            return this;
+        }
+
+        /**
+         * Sets which threads serve text protocol connections in BLOCKING mode
+         * and handle every client's requests.
+         * 
+         * @param threads the thread mode, requires it not be VIRTUAL if the I/O
+         *                mode is NIO
+         * @return these options
+         */
+        public Options threads(ThreadMode threads) {
+            this.threads = Objects.requireNonNull(threads);
+            return this;
+        }
+    }
     
-    private static final String TERMINATION_MSG = "terminate";
+    /** Most idle response buffers of each size kept for reuse. */
+    private static final int IDLE_BUFFERS = 8;
+    /** Milliseconds between rounds of board updates pushed to subscribers. */
+    private static final long PUSH_MILLIS = 50;
+
+    /** Response to bye: not sent, but closes the connection. */
+    static final Response TERMINATION = Response.of(new byte[0]);
 
     private static final String[] HELLO_MSG = { "Welcome to Minesweeper. Players: ", " including you. Board: ",
             " columns by ", " rows. Type 'help' for help.\n" };
@@ -46,26 +220,73 @@ public class MinesweeperServer {
             + "dig x y(this digs at location x,y in the minefield), "
             + "flag x y(this flags the location x,y in minefield), "
             + "deflag x y(this deflags the location x,y in minefield), " + "help(this returns this same help message), "
-            + "bye(this terminates the connection).\n";
+            + "bye(this terminates the connection), "
+            + "subscribe(this returns the board, then sends the changes made to it as they happen).\n";
+
+    /** First word of an update pushed to a text protocol subscriber. */
+    private static final String UPDATE_MSG = "update";
+    /** Line that precedes a whole board pushed to a text protocol subscriber. */
+    private static final String BOARD_MSG = "board\n";
+
+    private static final Response TEXT_BOOM = Response.of(BOOM_MSG.getBytes(StandardCharsets.US_ASCII));
+    private static final Response TEXT_HELP = Response.of(HELP_MSG.getBytes(StandardCharsets.US_ASCII));
+    private static final Response BINARY_BOOM = Response.of(BinaryProtocol.boom());
+    private static final Response BINARY_HELP = Response.of(BinaryProtocol.help(HELP_MSG));
 
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
+    /** Channel for receiving binary protocol connections, or null if there is none. */
+    private final ServerSocketChannel binarySocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
 
     /** Minesweeper board instance */
-    private final Board board;
+    private final GameBoard board;
+    /** How connections are served. */
+    private final IoMode io;
+    /** Makes the threads that read requests in BLOCKING mode. */
+    private final ThreadFactory threads;
+    /** Runs the tasks of the clients' SerialExecutors. */
+    private final Executor handlers;
+    /** The connected clients, over either protocol, by session id. */
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    /** Number of sessions registered, so that it can be read in O(1). */
+    private final AtomicInteger players = new AtomicInteger();
+    /** Id of the next session. */
+    private final AtomicLong nextSessionId = new AtomicLong();
+    /** Buffers that board responses are encoded into. */
+    private final BufferPool buffers = new BufferPool(IDLE_BUFFERS);
+    /** The most recent board encoded for each protocol, or null if none is yet. */
+    private final AtomicReference<Response> latestText = new AtomicReference<>();
+    private final AtomicReference<Response> latestBinary = new AtomicReference<>();
+    /** The sessions subscribed to board updates. Guards itself and published. */
+    private final Set<Session> subscribers = new HashSet<>();
+    /** The board as of the last round of pushes, or null while no one is subscribed. */
+    private BoardSnapshot published = null;
 
     // TODO: Abstraction function, rep invariant, rep exposure
     /*
      * Abstraction function: AF(board) = represents a minesweeper board, where
      * board.status(x,y) represents the status at that location in the board.
-     * AF(clients.size()) = number of connected clients to the server. AF(debug)
+     * AF(sessions) = the clients connected to the server, whether they
+     * speak the text protocol on serverSocket or the binary protocol on
+     * binarySocket, and AF(players) = how many there are. AF(debug)
      * = true if we are playing a minesweeper game where client is disconnected if
      * they dig a bomb, false otherwise (game continues one).
-     * AF(clientRequests) = all of the client requests that have been made to the server. 
+     * Each connected client's requests that have been read but not yet
+     * answered wait in its own SerialExecutor on handlers, in the order they
+     * were sent. latestText and latestBinary hold the newest board encoded for
+     * each protocol, which every client asking for that version is sent.
+     * subscribers are the clients pushed the changes to the board, which was
+     * last pushed to them as of published.
      * 
-     * Rep invariant: serverSocket, board, clientRequests, and clients are all non-null.
+     * Rep invariant: serverSocket, board, handlers, and sessions are all
+     * non-null. Every session in sessions is stored under its own id, and
+     * players == sessions.size() except while a join or leave is between
+     * changing one and the other. published is non-null if subscribers is
+     * non-empty, and no subscriber's pushed version is newer than it.
+     * latestText and latestBinary each hold a reference to the response they
+     * point to.
      * 
      * Safety from rep exposure argument: numberConnections and debug are immutable
      * references and ADTs. serverSocket can't be reassigned and we never change the
@@ -73,82 +294,403 @@ public class MinesweeperServer {
      * method. We never leak a reference to board nor to any data that is used to
      * construct board, and it is an immutable reference.
      * 
-     * Thread safety argument: serverSocket, debug, and numberConnections are never
-     * changed in any method and are thus immutable so thread-safe, while all
-     * concurrent accesses to board are synchronized.
+     * Thread safety argument: serverSocket, binarySocket and debug are never
+     * changed in any method and are thus immutable so thread-safe, players is
+     * atomic, while board
+     * is a threadsafe datatype, so handleRequest needs no lock of its own and
+     * requests on different parts of the board can run in parallel.
+     * sessions is a threadsafe map, and players lets hello count the players
+     * without walking it, so connecting and disconnecting clients never
+     * contend with gameplay for a lock. No method holds a monitor while it
+     * blocks, so that virtual threads are never pinned to their carriers. A
+     * client's requests are handled and answered by its SerialExecutor, one at
+     * a time and in order, so only one thread writes to it at a time;
+     * different clients are handled in parallel. The latest encoded boards
+     * are replaced by compare-and-set, and a response's buffer is only reused
+     * once every client it was being written to has released it. subscribers
+     * and published are only used with subscribers locked, which is never
+     * held while snapshotting the board or writing to a client: snapshots are
+     * taken before locking, and updates are pushed through each client's
+     * Subscriber, which writes them in its own turn. A NioServer
+     * confines each of its connections to one of its event loop threads.
      * 
      * 
      */
 
-    synchronized private void checkRep() {
-        assert serverSocket != null && board != null && clientRequests != null && clients != null;
+    private void checkRep() {
+        assert serverSocket != null && board != null && handlers != null && sessions != null;
         // assert numberConnections >= 0;
     }
 
-    public MinesweeperServer(boolean debug ) throws IOException {
-        this(DEFAULT_PORT, true, Optional.empty(), 10, 10);
-    }
-    
     /**
-     * Make a MinesweeperServer that listens for connections on port.
+     * Make a MinesweeperServer that plays on the board options give, listening
+     * for text protocol connections on their port and for binary protocol
+     * connections on their binary port, if any, and serving connections as
+     * their I/O and thread modes say.
      * 
-     * @param port  port number, requires 0 <= port <= 65535
-     * @param debug debug mode flag
-     * @throws IOException if an error occurs opening the server socket
+     * @param options how to run the server, read only here: changing them
+     *                afterwards does not change the server
+     * @throws IOException if an error occurs opening the server sockets
      */
-    public MinesweeperServer(int port, boolean debug, Optional<File> file, int sizeX, int sizeY) throws IOException {
-
-        if (file.isPresent()) {
-            BufferedReader reader = new BufferedReader(new FileReader(file.get()));
-            board = new Board(reader);
-        }
-
-        else if (sizeX > 0 && sizeY > 0) {
-            board = new Board(sizeX, sizeY, probabilityMine);
-
-        } else {
-            board = new Board(DEFAULT_SIZE, DEFAULT_SIZE, probabilityMine);
-        }
+    public MinesweeperServer(Options options) throws IOException {
+        this.board = options.board;
+        this.io = options.io;
+        this.threads = threadFactory(options.threads);
+        this.handlers = options.threads == ThreadMode.PLATFORM ? new ForkJoinPool(HANDLER_THREADS,
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true) : new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        MinesweeperServer.this.threads.newThread(task).start();
+                    }
+                };
 
         try {
-            serverSocket = new ServerSocket(port);
+            // a channel in both modes, so that responses can be written from
+            // buffers with gathering writes
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(options.port));
+            serverSocket = channel.socket();
+            if (options.binaryPort.isPresent()) {
+                binarySocket = ServerSocketChannel.open();
+                binarySocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                binarySocket.bind(new InetSocketAddress(options.binaryPort.getAsInt()));
+            } else {
+                binarySocket = null;
+            }
         } catch (IOException ioe) {
             ioe.printStackTrace();
             throw ioe;
         }
-        this.debug = debug;
+        this.debug = options.debug;
         
-        clientRequests = new LinkedBlockingQueue<>();
-        clients = new HashMap<>();
         checkRep();
     }
 
-    synchronized private String printHello() {
-        return HELLO_MSG[0] + String.valueOf(clients.size()) + HELLO_MSG[1] + String.valueOf(board.getWidth())
+    /*
+     * Returns a factory for threads of the given kind. Virtual threads are made
+     * through reflection so that the server still builds and runs on Java 17.
+     */
+    private static ThreadFactory threadFactory(ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("virtual threads need Java 21 or later; using platform threads");
+            }
+        }
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        };
+    }
+
+    /**
+     * Creates the starting board for a server, either loaded from a file or
+     * generated at random.
+     * 
+     * @param file  If file.isPresent(), load the board from the specified file,
+     *              according to the input file format defined in the
+     *              documentation for main(..).
+     * @param sizeX If (!file.isPresent()), width of the random board; if not
+     *              positive, DEFAULT_SIZE is used.
+     * @param sizeY If (!file.isPresent()), height of the random board; if not
+     *              positive, DEFAULT_SIZE is used.
+     * @param mines If (!file.isPresent()) and mines.isPresent(), the random board
+     *              has exactly this many bombs, requires 0 <= mines <= sizeX *
+     *              sizeY; otherwise each location has a bomb with probability
+     *              probabilityMine.
+     * @param seed  If (!file.isPresent()) and seed.isPresent(), the random board is
+     *              generated from this seed, so the same seed always gives the same
+     *              board.
+     * @return the new board
+     * @throws IOException if the file cannot be read
+     */
+    public static Board createBoard(Optional<File> file, int sizeX, int sizeY, OptionalInt mines,
+            OptionalLong seed) throws IOException {
+        if (file.isPresent()) {
+            return Board.load(file.get());
+        }
+
+        if (sizeX <= 0 || sizeY <= 0) {
+            sizeX = DEFAULT_SIZE;
+            sizeY = DEFAULT_SIZE;
+        }
+        if (mines.isPresent() && seed.isPresent()) {
+            return Board.withMineCount(sizeX, sizeY, mines.getAsInt(), seed.getAsLong());
+        } else if (mines.isPresent()) {
+            return Board.withMineCount(sizeX, sizeY, mines.getAsInt());
+        } else if (seed.isPresent()) {
+            return new Board(sizeX, sizeY, probabilityMine, seed.getAsLong());
+        }
+        return new Board(sizeX, sizeY, probabilityMine);
+    }
+
+    /*
+     * Returns a new, open session for a client that has just connected on
+     * channel, not yet registered.
+     */
+    Session newSession(SocketChannel channel, boolean binary) {
+        return new Session(nextSessionId.getAndIncrement(), channel, binary);
+    }
+
+    /*
+     * Registers session, which must be new, and returns the number of players
+     * including it.
+     */
+    int join(Session session) {
+        sessions.put(session.getId(), session);
+        return players.incrementAndGet();
+    }
+
+    /*
+     * Closes session, and stops counting it if it was registered. Does nothing
+     * if it was closed already.
+     */
+    void leave(Session session) {
+        session.close();
+        if (sessions.remove(session.getId(), session)) {
+            players.decrementAndGet();
+        }
+    }
+
+    /*
+     * Returns the hello message, in the text or the binary protocol, for a
+     * client arriving when there are players connected, counting the new one.
+     */
+    Response hello(int players, boolean binary) {
+        if (binary) {
+            return Response.of(BinaryProtocol.hello(players, board.getWidth(), board.getHeight()));
+        }
+        String hello = HELLO_MSG[0] + String.valueOf(players) + HELLO_MSG[1] + String.valueOf(board.getWidth())
                 + HELLO_MSG[2] + String.valueOf(board.getHeight()) + HELLO_MSG[3];
+        return Response.of(hello.getBytes(StandardCharsets.UTF_8));
     }
 
-    synchronized private void addClientSocket(Socket socket) throws IOException {
-        clients.put(socket, new PrintWriter(
-                 new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+    /*
+     * Returns true if a client is disconnected once it has been sent response.
+     */
+    boolean disconnectsAfter(Response response) {
+        return !debug && (response == TEXT_BOOM || response == BINARY_BOOM);
     }
-    
-    synchronized private void removeClientSocket(Socket socket) {
-        clients.remove(socket);
+
+    /*
+     * Returns the board, in the text or the binary protocol, as of a version at
+     * least as recent as every operation that completed before this call,
+     * retained for the caller. Each version is encoded at most once for each
+     * protocol, unless threads race to encode it, and shared by every client
+     * that asks for it.
+     */
+    private Response boardResponse(boolean binary) {
+        AtomicReference<Response> latest = binary ? latestBinary : latestText;
+        BoardSnapshot snapshot = board.snapshot();
+        while (true) {
+            Response cached = latest.get();
+            if (cached != null && cached.getVersion() >= snapshot.getVersion() && cached.retain()) {
+                return cached;
+            }
+            Response encoded = encode(snapshot, binary);
+            encoded.retain();
+            if (latest.compareAndSet(cached, encoded)) {
+                if (cached != null) {
+                    cached.release();
+                }
+                return encoded;
+            }
+            // another thread cached a board first
+            encoded.release();
+            encoded.release();
+        }
     }
-    
-    private void initClientHandlerThreads() {
-        for (int i = 0; i < NUMBER_RESPONSE_THREADS; i ++) {
-            new Thread (new Runnable() {
-                @Override 
-                public void run() {
-                    handleClientRequests();
+
+    /*
+     * Encodes snapshot into a pooled buffer, holding one reference.
+     */
+    private Response encode(BoardSnapshot snapshot, boolean binary) {
+        String text = snapshot.toString();
+        if (!binary) {
+            return encodeAscii(text, snapshot.getVersion());
+        }
+        ByteBuffer bytes = buffers.acquire(BinaryProtocol.boardFrameLength(snapshot.getWidth(), snapshot.getHeight()));
+        BinaryProtocol.board(text, snapshot.getWidth(), snapshot.getHeight(), bytes);
+        return new Response(bytes, buffers, snapshot.getVersion());
+    }
+
+    /*
+     * Encodes ASCII text, one byte per char, into a pooled buffer, holding one
+     * reference.
+     */
+    private Response encodeAscii(CharSequence text, long version) {
+        ByteBuffer bytes = buffers.acquire(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            bytes.put(i, (byte) text.charAt(i));
+        }
+        return new Response(bytes, buffers, version);
+    }
+
+    /*
+     * Subscribes session to board updates, and returns the board they start
+     * from, retained for the caller. Subscribing again starts over from a
+     * board of its own.
+     */
+    private Response subscribe(Session session) {
+        assert session.getSubscriber() != null;
+        // taken before locking, since it may wait for operations to finish
+        BoardSnapshot current = board.snapshot();
+        BoardSnapshot start;
+        synchronized (subscribers) {
+            if (published == null) {
+                published = current;
+            }
+            start = published;
+            session.setPushedVersion(start.getVersion());
+            subscribers.add(session);
+        }
+        return encode(start, session.isBinary());
+    }
+
+    /*
+     * Pushes board updates to the subscribers every PUSH_MILLIS until
+     * interrupted. Each round, every subscriber is pushed the changes since
+     * the round before if it took that round's push, or the whole board if it
+     * missed a round, unless it is still being written an earlier push.
+     */
+    private void pushUpdates() {
+        while (true) {
+            try {
+                Thread.sleep(PUSH_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (subscribers) {
+                for (Iterator<Session> i = subscribers.iterator(); i.hasNext();) {
+                    if (!i.next().isOpen()) {
+                        i.remove();
+                    }
                 }
-            }).start();
+                if (subscribers.isEmpty()) {
+                    published = null;
+                    continue;
+                }
+            }
+            // taken before locking, since it may wait for operations to finish
+            BoardSnapshot next = board.snapshot();
+            BoardSnapshot previous;
+            List<Session> current = new ArrayList<>();
+            List<Session> behind = new ArrayList<>();
+            synchronized (subscribers) {
+                if (subscribers.isEmpty()) {
+                    published = null;
+                    continue;
+                }
+                previous = published;
+                // a subscribe meanwhile may have published a newer board
+                if (next.getVersion() <= previous.getVersion()) {
+                    next = previous;
+                }
+                published = next;
+                for (Session session : subscribers) {
+                    if (session.getPushedVersion() == next.getVersion() || !session.startPush()) {
+                        continue;
+                    }
+                    (session.getPushedVersion() == previous.getVersion() ? current : behind).add(session);
+                    session.setPushedVersion(next.getVersion());
+                }
+            }
+            push(current, changed(previous, next), next);
+            push(behind, changed(null, next), next);
         }
     }
-    
-    
+
+    /*
+     * Returns the indices in row-major order of the locations whose status
+     * differs between from and to, or of every location if from is null.
+     */
+    private static int[] changed(BoardSnapshot from, BoardSnapshot to) {
+        String after = to.toString();
+        int cells = to.getWidth() * to.getHeight();
+        if (from == null) {
+            int[] all = new int[cells];
+            for (int i = 0; i < cells; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        String before = from.toString();
+        int[] changed = new int[cells];
+        int count = 0;
+        for (int i = 0; i < cells; i++) {
+            if (before.charAt(2 * i) != after.charAt(2 * i)) {
+                changed[count++] = i;
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    /*
+     * Pushes each of targets, which have started a push, an update listing
+     * the locations changed, with their status in to. The update is encoded
+     * at most once for each protocol.
+     */
+    private void push(List<Session> targets, int[] changed, BoardSnapshot to) {
+        Response text = null;
+        Response binary = null;
+        for (Session session : targets) {
+            Response update;
+            if (session.isBinary()) {
+                if (binary == null) {
+                    binary = encodeUpdate(changed, to, true);
+                }
+                update = binary;
+            } else {
+                if (text == null) {
+                    text = encodeUpdate(changed, to, false);
+                }
+                update = text;
+            }
+            update.retain();
+            session.getSubscriber().push(session, update);
+        }
+        if (text != null) {
+            text.release();
+        }
+        if (binary != null) {
+            binary.release();
+        }
+    }
+
+    /*
+     * Encodes an update listing the locations changed, with their status in
+     * to, into a pooled buffer, holding one reference. An update at least as
+     * long as the whole board is encoded as the board instead.
+     */
+    private Response encodeUpdate(int[] changed, BoardSnapshot to, boolean binary) {
+        int width = to.getWidth();
+        if (binary) {
+            int length = BinaryProtocol.updateFrameLength(changed, changed.length, width);
+            if (length >= BinaryProtocol.boardFrameLength(width, to.getHeight())) {
+                return encode(to, true);
+            }
+            ByteBuffer bytes = buffers.acquire(length);
+            BinaryProtocol.update(changed, changed.length, to.toString(), width, bytes);
+            return new Response(bytes, buffers, -1);
+        }
+        String board = to.toString();
+        StringBuilder update = new StringBuilder(UPDATE_MSG);
+        for (int i : changed) {
+            update.append(' ').append(i % width).append(' ').append(i / width).append(' ')
+                    .append(to.status(i % width, i / width));
+            if (update.length() >= board.length()) {
+                return encodeAscii(BOARD_MSG + board, -1);
+            }
+        }
+        return encodeAscii(update.append('\n'), -1);
+    }
+
     /**
      * Run the server, listening for client connections and handling them. Never
      * returns unless an exception is thrown.
@@ -157,21 +699,46 @@ public class MinesweeperServer {
      *                     individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
-        initClientHandlerThreads();
-        
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pushUpdates();
+            }
+        }, "minesweeper-push");
+        pusher.setDaemon(true);
+        pusher.start();
+        if (io == IoMode.NIO) {
+            new NioServer(this, handlers, serverSocket.getChannel(), binarySocket, NIO_LOOPS).serve();
+            return;
+        }
+        if (binarySocket != null) {
+            final NioServer binaryServer = new NioServer(this, handlers, null, binarySocket, 1);
+            Thread binaryThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        binaryServer.serve();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "minesweeper-binary");
+            binaryThread.setDaemon(true);
+            binaryThread.start();
+        }
         while (true) {
             // handle the client
             try {
                 // block until a client connects
                 final Socket socket = serverSocket.accept();
 
-                new Thread(new Runnable() {
+                threads.newThread(new Runnable() {
                     @Override
                     public void run() {
                         try {
 
                             processClientRequests(socket);
-                        } catch (IOException | InterruptedException e) {
+                        } catch (IOException e) {
                             // TODO Auto-generated catch block
                             e.printStackTrace();
 
@@ -187,92 +754,158 @@ public class MinesweeperServer {
         }
     }
     
-    private void handleClientRequests() {        
-        while( true) {
-            ClientRequest request = null; 
-            try {
-                request = clientRequests.take();
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                continue;
-            }
-            
-            Socket socket = request.getSocket();
-            if (!clients.containsKey(socket)) continue;
-            
-            String requestMsg = request.getMessage();
-            String response = handleRequest(requestMsg);
-            PrintWriter writer = clients.get(socket);
-            
-            if (response.equals(TERMINATION_MSG)) {
-                closeSocket (socket);
-                continue;
-            } else {
-                writer.print(response);
-                writer.flush();
-            }
-            if (response.equals(BOOM_MSG) && !debug) {
-                closeSocket(socket);
-            } 
+    /*
+     * Handles one request from the client of session and writes the response,
+     * unless the client has disconnected already. command is the client's own,
+     * reused for each of its requests.
+     */
+    private void respond(Session session, String request, Command command) {
+        if (!session.isOpen()) return;
+        
+        Response response = handleRequest(command.decode(request), session);
+        if (response == TERMINATION) {
+            leave(session);
+            return;
         }
-    }
-    
-    private synchronized void closeSocket( Socket socket) {
         try {
-            socket.close();
-            removeClientSocket(socket);
+            write(session.getChannel(), response);
+            session.answered(response.length());
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            leave(session);
+            return;
+        } finally {
+            response.release();
+        }
+        if (disconnectsAfter(response)) {
+            leave(session);
+        } 
+    }
+
+    /*
+     * Writes all of response to a blocking channel. A client slow to read
+     * blocks the thread writing to it, so the write is a managed block, for
+     * which handlers can start a spare thread.
+     */
+    private static void write(final SocketChannel channel, Response response) throws IOException {
+        final ByteBuffer bytes = response.view();
+        final IOException[] failure = new IOException[1];
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() {
+                    try {
+                        while (bytes.hasRemaining()) {
+                            channel.write(bytes);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return !bytes.hasRemaining() || failure[0] != null;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
         }
     }
     
+    /*
+     * Returns a subscriber that writes each update pushed to a blocking
+     * session as a task on lane, the session's own, in turn with its
+     * responses.
+     */
+    private Session.Subscriber pushesOn(final SerialExecutor lane) {
+        return new Session.Subscriber() {
+            @Override
+            public void push(final Session session, final Response update) {
+                lane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (session.isOpen()) {
+                                write(session.getChannel(), update);
+                                session.sent(update.length());
+                            }
+                        } catch (IOException e) {
+                            leave(session);
+                        } finally {
+                            update.release();
+                            session.endPush();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
     /**
-     * Handle a single client connection. Returns when client disconnects.
+     * Handle a single client connection. Returns when client disconnects. Each
+     * request is handed to the client's own SerialExecutor, so the client may
+     * send more requests before reading the responses and still gets them in
+     * order. While MAX_PENDING_REQUESTS of them wait to be answered, as when
+     * the client stops reading, no more are read.
      * 
      * @param socket socket where the client is connected
      * @throws IOException if the connection encounters an error or terminates
      *                     unexpectedly
-     * @throws InterruptedException 
      */
-    private void processClientRequests(Socket socket) throws IOException, InterruptedException {
-        
-        try (BufferedReader in = new BufferedReader(
+    private void processClientRequests(final Socket socket) throws IOException {
+        final SerialExecutor lane = new SerialExecutor(handlers);
+        final Session session = newSession(socket.getChannel(), false);
+        session.setSubscriber(pushesOn(lane));
+        // not closed here: the socket closes once the last response is written
+        BufferedReader in = new BufferedReader(
                 new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-           // PrintWriter out = new PrintWriter(
-             //    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-                )
-        {
-            addClientSocket(socket);   
-            PrintWriter out = clients.get(socket);
-            out.print(printHello());
-            out.flush();
+        try {
+            Response hello = hello(join(session), false);
+            write(session.getChannel(), hello);
+            session.sent(hello.length());
+            // only used by the lane's tasks, one at a time
+            final Command command = new Command();
+            // a permit for each request the lane may hold
+            final Semaphore pending = new Semaphore(MAX_PENDING_REQUESTS);
             for (String line = in.readLine(); line != null; line = in.readLine()) {
-                if (! clients.containsKey(socket)) break;
-                ClientRequest request = new ClientRequest(socket,line);
-                clientRequests.put(request);
-                
-                /*
-                String output = handleRequest(line);
-
-                
-                if (output.equals(TERMINATION_MSG)) {
-                    break;
-                } else {
-                    out.print(output);
-                    out.flush();
+                if (! session.isOpen()) break;
+                final String request = line;
+                try {
+                    pending.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
                 }
-                if (output.equals(BOOM_MSG) && !debug) {
-                    break;
-                }  */
+                lane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            respond(session, request, command);
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
                 checkRep();
             }
-            socket.close();
-        } catch (InterruptedException | IOException e) {
-            // TODO Auto-generated catch block
-            //e.printStackTrace();
-            removeClientSocket(socket);
+            // answer what the client sent before closing
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    leave(session);
+                }
+            });
+        } catch (IOException e) {
+            if (!session.isOpen()) {
+                // closed by the server, cutting the read short
+                return;
+            }
+            leave(session);
             throw e;
         }
         checkRep();
@@ -282,58 +915,62 @@ public class MinesweeperServer {
      * Handler for client input, performing requested operations and returning an
      * output message.
      * 
-     * @param input message from client
-     * @return message to client
-     */
-    synchronized private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|" + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if (!input.matches(regex)) {
-            // invalid input
-            // TODO Problem 5
-            return HELP_MSG;
-        }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            return board.toString();
-            // 'look' request
-            // TODO Problem 5
-        } else if (tokens[0].equals("help")) {
-            return HELP_MSG;
-            // 'help' request
-            // TODO Problem 5
-        } else if (tokens[0].equals("bye")) {
-            return TERMINATION_MSG;
-            // 'bye' request
-            // TODO Problem 5
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (!(board.inbounds(x, y))) {
-                return board.toString();
-            } else if (tokens[0].equals("dig")) {
-
-                boolean result = board.dig(x, y);
-                if (result) {
-                    return BOOM_MSG;
-                } else {
-                    return board.toString();
-                }
-                // 'dig x y' request
-                // TODO Problem 5
-            } else if (tokens[0].equals("flag")) {
-                board.flag(x, y);
-                return board.toString();
-                // 'flag x y' request
-                // TODO Problem 5
-            } else if (tokens[0].equals("deflag")) {
-                board.deflag(x, y);
-                return board.toString();
-                // 'deflag x y' request
-                // TODO Problem 5
-            }
-        }
-        // TODO: Should never get here, make sure to return in each of the cases above
-        throw new UnsupportedOperationException();
+     * A client that subscribes is answered with the board, and from then on is
+     * pushed the changes to it every PUSH_MILLIS or so, in between its
+     * responses, until it disconnects. However many operations were performed
+     * meanwhile, each push lists every location that changed since the last
+     * one, with its new status, so that applying each in turn to the board
+     * subscribe returned keeps it up to date. In the text protocol a push is
+     * the line "update", then " X Y S" for each location, where S is its
+     * status as in look but with 0 for a dug location with no neighboring
+     * bombs; or, if that would be longer, the line "board" then the whole
+     * board as look returns it. In the binary protocol it is an update frame,
+     * or a board frame if that is shorter. A client still being written its
+     * last push when the next is due skips it, and is pushed everything it
+     * missed in the next push it can take.
+     * 
+     * @param command request from client, decoded from its message
+     * @param session the client's session
+     * @return message to client, in the protocol session speaks, or
+     *         TERMINATION if the client said bye; the caller must release it
+     *         once it is written
+     */
+    Response handleRequest(Command command, Session session) {
+        boolean binary = session.isBinary();
+        switch (command.getKind()) {
+        case LOOK:
+            return boardResponse(binary);
+        case HELP:
+        case INVALID:
+            return binary ? BINARY_HELP : TEXT_HELP;
+        case BYE:
+            return TERMINATION;
+        case SUBSCRIBE:
+            return subscribe(session);
+        default:
+            break;
+        }
+
+        int x = command.getX();
+        int y = command.getY();
+        if (!board.inbounds(x, y)) {
+            return boardResponse(binary);
+        }
+        switch (command.getKind()) {
+        case DIG:
+            if (board.dig(x, y)) {
+                return binary ? BINARY_BOOM : TEXT_BOOM;
+            }
+            return boardResponse(binary);
+        case FLAG:
+            board.flag(x, y);
+            return boardResponse(binary);
+        case DEFLAG:
+            board.deflag(x, y);
+            return boardResponse(binary);
+        default:
+            throw new AssertionError(command);
+        }
     }
 
     /**
@@ -341,7 +978,9 @@ public class MinesweeperServer {
      * 
      * <br>
      * Usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size
-     * SIZE_X,SIZE_Y | --file FILE]
+     * SIZE_X,SIZE_Y [--mines MINES] | --file FILE] [--seed SEED]
+     * [--recover DIR | --shared SHARED | --chunked CHUNKS] [--io IO] [--threads
+     * THREADS] [--binary-port BINARY_PORT]
      * 
      * <br>
      * The --debug argument means the server should run in debug mode. The server
@@ -363,6 +1002,21 @@ public class MinesweeperServer {
      * random board of size 42*58.
      * 
      * <br>
+     * MINES is an optional integer argument giving the exact number of mines to
+     * place on the random board, which must be between 0 and SIZE_X*SIZE_Y. If it
+     * is not given, each location has a mine with probability 0.25. <br>
+     * E.g. "MinesweeperServer --size 42,58 --mines 100" starts the server with a
+     * random board of size 42*58 holding exactly 100 mines.
+     * 
+     * <br>
+     * SEED is an optional integer argument. If it is given, the random board is
+     * generated from it, so that starting the server again with the same SEED and
+     * SIZE_X,SIZE_Y reproduces exactly the same board. It has no effect when
+     * --file is given. <br>
+     * E.g. "MinesweeperServer --size 42,58 --seed 7" starts the server with the
+     * board generated from seed 7.
+     * 
+     * <br>
      * FILE is an optional argument specifying a file pathname where a board has
      * been stored. If this argument is given, the stored board should be loaded as
      * the starting board. <br>
@@ -385,6 +1039,74 @@ public class MinesweeperServer {
      *   INT ::= [0-9]+
      * </pre>
      * 
+     * FILE may also be a board written by Board.save in its binary format, which
+     * is recognized automatically and restores the flagged and dug locations too
+     * if they were saved.
+     * 
+     * <br>
+     * DIR is an optional argument naming a directory in which the server keeps a
+     * journal of the game: a snapshot of the board, saved every minute, and a log
+     * of every successful dig, flag and deflag since. If DIR already holds a
+     * journal, the server starts from the board recovered from it, ignoring
+     * --size, --mines, --file and --seed; otherwise it starts a new journal there
+     * for the board those options describe. Operations are logged in the
+     * background, so the last few milliseconds of play may be lost in a crash.
+     * If the journal cannot be written, the server reports why and exits
+     * rather than go on with play it could not recover.
+     * <br>
+     * E.g. "MinesweeperServer --size 42,58 --recover game" plays a new random
+     * board journaled in the directory game, and running the same command after
+     * the server dies continues the game where it stopped.
+     * 
+     * <br>
+     * SHARED is an optional argument naming a file through which several server
+     * processes on the same machine play one board: each maps the file into
+     * memory and changes it in place with atomic operations, so every move made
+     * through one server is seen at once by clients of the others. The first
+     * server creates SHARED from the board --size, --mines, --file and --seed
+     * describe; later ones attach to it and ignore those options. SHARED cannot be
+     * combined with --recover. <br>
+     * E.g. "MinesweeperServer --port 4444 --size 500,500 --shared game.board" and
+     * "MinesweeperServer --port 4445 --shared game.board" run two servers that
+     * serve the same 500*500 board.
+     * 
+     * <br>
+     * CHUNKS is an optional argument naming a directory in which the server
+     * plays a ChunkedBoard of SIZE_X*SIZE_Y generated from SEED, or from a
+     * random seed if none is given: a board held a chunk at a time, of which
+     * only the most recently used stay in memory, the changed ones evicted
+     * being kept in a directory of the server's own inside CHUNKS, created if
+     * it does not exist. Since look shows the whole board, SIZE_X*SIZE_Y can
+     * be at most ChunkedBoard.MAX_SNAPSHOT_LOCATIONS. CHUNKS cannot be combined
+     * with --file, --mines, --recover or --shared. <br>
+     * E.g. "MinesweeperServer --size 20000,20000 --chunked chunks" plays a
+     * 20000*20000 board without holding all of it in memory.
+     * 
+     * <br>
+     * IO is an optional argument, either "blocking", the default, which serves
+     * each client from a thread of its own, or "nio", which serves all clients
+     * from a few threads with non-blocking I/O so that thousands can be connected
+     * at once. The protocol is the same either way. <br>
+     * E.g. "MinesweeperServer --io nio" starts the server with non-blocking I/O.
+     * 
+     * <br>
+     * THREADS is an optional argument, either "platform", the default, or
+     * "virtual", which reads and handles the requests of blocking I/O on virtual
+     * threads so that a blocked client costs a few kilobytes instead of a thread
+     * stack. It needs Java 21 or later, falling back to platform threads before
+     * that, and cannot be combined with "--io nio". <br>
+     * E.g. "MinesweeperServer --threads virtual" serves each client from a
+     * virtual thread.
+     * 
+     * <br>
+     * BINARY_PORT is an optional port, other than PORT, on which the server also
+     * accepts clients speaking the compact binary protocol described by
+     * BinaryProtocol: length-prefixed frames with 1-byte opcodes, and boards
+     * sent at 4 bits per location. Binary and text clients play the same board
+     * and are counted together. <br>
+     * E.g. "MinesweeperServer --port 4444 --binary-port 4445" serves the text
+     * protocol on port 4444 and the binary protocol on port 4445.
+     * 
      * <br>
      * If neither --file nor --size is given, generate a random board of size 10x10.
      * 
@@ -400,6 +1122,14 @@ public class MinesweeperServer {
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
+        OptionalInt mines = OptionalInt.empty();
+        OptionalLong seed = OptionalLong.empty();
+        Optional<File> journal = Optional.empty();
+        Optional<File> shared = Optional.empty();
+        Optional<File> chunked = Optional.empty();
+        IoMode io = IoMode.BLOCKING;
+        ThreadMode threads = ThreadMode.PLATFORM;
+        OptionalInt binaryPort = OptionalInt.empty();
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -415,11 +1145,44 @@ public class MinesweeperServer {
                         if (port < 0 || port > MAXIMUM_PORT) {
                             throw new IllegalArgumentException("port " + port + " out of range");
                         }
+                    } else if (flag.equals("--binary-port")) {
+                        binaryPort = OptionalInt.of(Integer.parseInt(arguments.remove()));
+                        if (binaryPort.getAsInt() < 0 || binaryPort.getAsInt() > MAXIMUM_PORT) {
+                            throw new IllegalArgumentException("port " + binaryPort.getAsInt() + " out of range");
+                        }
                     } else if (flag.equals("--size")) {
                         String[] sizes = arguments.remove().split(",");
                         sizeX = Integer.parseInt(sizes[0]);
                         sizeY = Integer.parseInt(sizes[1]);
                         file = Optional.empty();
+                    } else if (flag.equals("--mines")) {
+                        mines = OptionalInt.of(Integer.parseInt(arguments.remove()));
+                    } else if (flag.equals("--seed")) {
+                        seed = OptionalLong.of(Long.parseLong(arguments.remove()));
+                    } else if (flag.equals("--recover")) {
+                        journal = Optional.of(new File(arguments.remove()));
+                    } else if (flag.equals("--io")) {
+                        String mode = arguments.remove();
+                        if (mode.equals("blocking")) {
+                            io = IoMode.BLOCKING;
+                        } else if (mode.equals("nio")) {
+                            io = IoMode.NIO;
+                        } else {
+                            throw new IllegalArgumentException("unknown I/O mode: \"" + mode + "\"");
+                        }
+                    } else if (flag.equals("--threads")) {
+                        String mode = arguments.remove();
+                        if (mode.equals("platform")) {
+                            threads = ThreadMode.PLATFORM;
+                        } else if (mode.equals("virtual")) {
+                            threads = ThreadMode.VIRTUAL;
+                        } else {
+                            throw new IllegalArgumentException("unknown thread mode: \"" + mode + "\"");
+                        }
+                    } else if (flag.equals("--shared")) {
+                        shared = Optional.of(new File(arguments.remove()));
+                    } else if (flag.equals("--chunked")) {
+                        chunked = Optional.of(new File(arguments.remove()));
                     } else if (flag.equals("--file")) {
                         sizeX = -1;
                         sizeY = -1;
@@ -436,41 +1199,139 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (mines.isPresent() && !file.isPresent()
+                    && (mines.getAsInt() < 0 || mines.getAsInt() > (long) sizeX * sizeY)) {
+                throw new IllegalArgumentException("mines " + mines.getAsInt() + " out of range");
+            }
+            if (journal.isPresent() && shared.isPresent()) {
+                throw new IllegalArgumentException("--recover and --shared cannot be combined");
+            }
+            if (chunked.isPresent()
+                    && (file.isPresent() || mines.isPresent() || journal.isPresent() || shared.isPresent())) {
+                throw new IllegalArgumentException("--chunked cannot be combined with --file, --mines, --recover or --shared");
+            }
+            if (chunked.isPresent() && (long) sizeX * sizeY > ChunkedBoard.MAX_SNAPSHOT_LOCATIONS) {
+                throw new IllegalArgumentException("board of " + sizeX + "x" + sizeY + " too large for --chunked");
+            }
+            if (binaryPort.isPresent() && binaryPort.getAsInt() == port) {
+                throw new IllegalArgumentException("--port and --binary-port must differ");
+            }
+            if (io == IoMode.NIO && threads == ThreadMode.VIRTUAL) {
+                throw new IllegalArgumentException("--io nio and --threads virtual cannot be combined");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
             System.err.println(
-                    "usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+                    "usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y [--mines MINES] | --file FILE] [--seed SEED] [--recover DIR | --shared SHARED | --chunked CHUNKS] [--io IO] [--threads THREADS] [--binary-port BINARY_PORT]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            GameBoard board;
+            Optional<BoardJournal> boardJournal = Optional.empty();
+            if (shared.isPresent()) {
+                board = openShared(shared.get(), file, sizeX, sizeY, mines, seed);
+            } else if (chunked.isPresent()) {
+                Files.createDirectories(chunked.get().toPath());
+                board = new ChunkedBoard(sizeX, sizeY, probabilityMine, seed.orElse(new SplittableRandom().nextLong()),
+                        CHUNKED_RESIDENT, chunked.get());
+            } else {
+                Board played;
+                if (journal.isPresent() && BoardJournal.canRecover(journal.get())) {
+                    played = BoardJournal.recover(journal.get());
+                } else {
+                    played = createBoard(file, sizeX, sizeY, mines, seed);
+                }
+                if (journal.isPresent()) {
+                    boardJournal = Optional.of(startJournal(played, journal.get()));
+                }
+                board = played;
+            }
+            releaseOnShutdown(board, boardJournal);
+            Options options = new Options(board).port(port).debug(debug).io(io).threads(threads);
+            if (binaryPort.isPresent()) {
+                options.binaryPort(binaryPort.getAsInt());
+            }
+            runMinesweeperServer(options);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
     }
 
+    /*
+     * Attaches to the shared board in file, creating it from the board the other
+     * arguments describe, as createBoard does, if no server has yet.
+     */
+    private static SharedBoard openShared(File shared, Optional<File> file, int sizeX, int sizeY,
+            OptionalInt mines, OptionalLong seed) throws IOException {
+        if (!shared.exists()) {
+            Board board = createBoard(file, sizeX, sizeY, mines, seed);
+            try {
+                return SharedBoard.create(shared, board);
+            } catch (FileAlreadyExistsException e) {
+                // another server created it first
+            } finally {
+                board.release();
+            }
+        }
+        return SharedBoard.open(shared);
+    }
+
+    /*
+     * Releases board, which the server owns, when the JVM shuts down, first
+     * closing its journal, if any, so that the journal's last snapshot is
+     * saved from the board before it is freed.
+     */
+    private static void releaseOnShutdown(final GameBoard board, final Optional<BoardJournal> journal) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (journal.isPresent()) {
+                    try {
+                        journal.get().close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                board.release();
+            }
+        }, "minesweeper-release"));
+    }
+
+    /*
+     * Journals board into directory, exiting if the journal fails, and returns
+     * the journal, which the caller must close.
+     */
+    private static BoardJournal startJournal(Board board, final File directory) throws IOException {
+        final BoardJournal journal = new BoardJournal(board, directory, SNAPSHOT_MILLIS);
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IOException failure = journal.awaitFailure();
+                    if (failure != null) {
+                        System.err.println("journal " + directory + " failed, stopping: " + failure);
+                        System.exit(1);
+                    }
+                } catch (InterruptedException e) {
+                    // the JVM is shutting down
+                }
+            }
+        }, "journal watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        return journal;
+    }
+
     /**
-     * Start a MinesweeperServer running on the specified port, with either a random
-     * new board or a board loaded from a file.
-     * 
-     * @param debug The server will disconnect a client after a BOOM message if and
-     *              only if debug is false.
-     * @param file  If file.isPresent(), start with a board loaded from the
-     *              specified file, according to the input file format defined in
-     *              the documentation for main(..).
-     * @param sizeX If (!file.isPresent()), start with a random board with width
-     *              sizeX (and require sizeX > 0).
-     * @param sizeY If (!file.isPresent()), start with a random board with height
-     *              sizeY (and require sizeY > 0).
-     * @param port  The network port on which the server should listen, requires 0
-     *              <= port <= 65535.
+     * Start a MinesweeperServer running as options say, and serve clients
+     * until the server stops.
+     * 
+     * @param options how to run the server
      * @throws IOException if a network error occurs
      */
-    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port)
-            throws IOException {
-
-        MinesweeperServer server = new MinesweeperServer(port, debug, file, sizeX, sizeY);
+    public static void runMinesweeperServer(Options options) throws IOException {
+        MinesweeperServer server = new MinesweeperServer(options);
         server.serve();
     }
 }
@@ -0,0 +1,524 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * The non-blocking network front end of a MinesweeperServer: one thread accepts
+ * connections and hands them out in turn to a small fixed set of event loops,
+ * each of which serves all of its connections from a single Selector. Requests
+ * are read without blocking, split into lines as BufferedReader.readLine
+ * would, and decoded straight from the bytes into the connection's Command.
+ * The loops only decode and write: each request is handled on the
+ * connection's own SerialExecutor, so requests that take long on the board do
+ * not hold up the loop's other connections, and the response is handed back
+ * to the loop, in the order the requests arrived. The responses that come
+ * back at once are queued, then written together by gathering writes straight
+ * from the server's shared, pre-encoded buffers, as far as the socket will take
+ * them, the rest waiting until it is writable again. Board updates pushed to
+ * a subscribed connection pass through its SerialExecutor too, so they reach
+ * the loop in turn with the responses.
+ *
+ * Connections accepted on the binary channel speak BinaryProtocol instead:
+ * their requests are split into frames rather than lines, and their responses
+ * are encoded as frames.
+ *
+ * A client that sends requests faster than it reads the responses is not read
+ * from while more than MAX_PENDING_OUTPUT bytes are waiting to be sent to it,
+ * or while MinesweeperServer.MAX_PENDING_REQUESTS of its requests wait to be
+ * answered, and a request line longer than MAX_LINE_BYTES is answered as
+ * invalid.
+ */
+class NioServer {
+
+    /** Longest request line kept; longer lines are answered as invalid. */
+    private static final int MAX_LINE_BYTES = 8192;
+    /** Most bytes queued for one client before its requests stop being read. */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+    /** Size of each loop's read buffer. */
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    /** Most responses passed to one gathering write. */
+    private static final int MAX_GATHER = 64;
+
+    private final MinesweeperServer server;
+    private final Executor handlers;
+    private final ServerSocketChannel text;
+    private final ServerSocketChannel binary;
+    private final EventLoop[] loops;
+
+    /*
+     * Abstraction function: AF(text, binary, loops) = a server accepting text
+     * protocol clients on text and binary protocol clients on binary, where a
+     * null channel accepts no one, and each connected client is served by
+     * exactly one of loops.
+     *
+     * Rep invariant: loops is non-empty, at least one of text and binary is
+     * non-null, and every open connection is registered with the selector of
+     * exactly one loop.
+     *
+     * Safety from rep exposure argument: all fields are private and final, and
+     * no method returns them or the connections.
+     *
+     * Thread safety argument: each connection is only touched by the thread of
+     * the loop it belongs to, except for the fields its lane's tasks use, which
+     * only they touch, one at a time; the acceptor thread hands a new channel
+     * to a loop, and the lane tasks their answers, through the loop's
+     * concurrent queues. The server's request handling and player count are
+     * threadsafe.
+     */
+
+    /**
+     * Makes the front end of server.
+     *
+     * @param server   the server whose requests are handled
+     * @param handlers runs the tasks of the connections' SerialExecutors
+     * @param text     an open, bound server channel for text protocol clients,
+     *                 or null
+     * @param binary   an open, bound server channel for binary protocol
+     *                 clients, or null; requires text or binary to be non-null
+     * @param loops    number of event loops, must be > 0
+     * @throws IOException if a selector cannot be opened
+     */
+    NioServer(MinesweeperServer server, Executor handlers, ServerSocketChannel text, ServerSocketChannel binary,
+            int loops) throws IOException {
+        this.server = server;
+        this.handlers = handlers;
+        this.text = text;
+        this.binary = binary;
+        this.loops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++)
+            this.loops[i] = new EventLoop(Selector.open());
+    }
+
+    /**
+     * Starts the event loops and accepts connections. Never returns unless an
+     * exception is thrown.
+     *
+     * @throws IOException if the server channel is broken
+     */
+    void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "minesweeper-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (Selector selector = Selector.open()) {
+            for (ServerSocketChannel acceptor : new ServerSocketChannel[] { text, binary }) {
+                if (acceptor != null) {
+                    acceptor.configureBlocking(false);
+                    acceptor.register(selector, SelectionKey.OP_ACCEPT);
+                }
+            }
+            int next = 0;
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ServerSocketChannel acceptor = (ServerSocketChannel) key.channel();
+                    for (SocketChannel channel = acceptor.accept(); channel != null; channel = acceptor.accept()) {
+                        loops[next].add(new Connection(server.newSession(channel, acceptor == binary),
+                                new SerialExecutor(handlers)));
+                        next = (next + 1) % loops.length;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    /*
+     * One client's connection: its session, its partial request line or frame,
+     * and queued output: a view in output of each response in responses not yet entirely
+     * written, in the same order. For a binary connection, frameLength is the
+     * length of the frame being read, or -1 while its length is read into
+     * lengthValue, of which lengthBytes have been read. pushPending is true
+     * while a board update pushed to the session is in output. inFlight is the
+     * number of requests handed to lane whose answers the loop has not yet
+     * taken back.
+     *
+     * lane handles the connection's requests and passes on its pushes, and
+     * only its tasks use handling, the command being handled, and ended,
+     * which is set once a response ends the session, after which the requests
+     * still in lane are dropped unhandled.
+     */
+    private static class Connection {
+        private final Session session;
+        private final SocketChannel channel;
+        private final boolean binary;
+        private final SerialExecutor lane;
+        private final Command handling = new Command();
+        private boolean ended = false;
+        private int inFlight = 0;
+        private SelectionKey key;
+        private byte[] line = new byte[64];
+        private int lineLength = 0;
+        private boolean lineTooLong = false;
+        private boolean skipNewline = false;
+        private int frameLength = -1;
+        private long lengthValue = 0;
+        private int lengthBytes = 0;
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private final Queue<Response> responses = new ArrayDeque<>();
+        private long pendingOutput = 0;
+        private boolean closeWhenFlushed = false;
+        private boolean pushPending = false;
+        private final Command command = new Command();
+
+        private Connection(Session session, SerialExecutor lane) {
+            this.session = session;
+            this.channel = session.getChannel();
+            this.binary = session.isBinary();
+            this.lane = lane;
+        }
+    }
+
+    /*
+     * On its way from a connection's lane to the connection's loop: the
+     * response to a request, or null if the request was dropped, or a board
+     * update pushed to the connection if pushed is true.
+     */
+    private static class Answer {
+        private final Connection connection;
+        private final Response response;
+        private final boolean pushed;
+
+        private Answer(Connection connection, Response response, boolean pushed) {
+            this.connection = connection;
+            this.response = response;
+            this.pushed = pushed;
+        }
+    }
+
+    /*
+     * A thread serving its connections from one selector.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> added = new ConcurrentLinkedQueue<>();
+        private final Queue<Answer> answers = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /*
+         * Hands a newly accepted connection to this loop. Called from the
+         * acceptor thread.
+         */
+        private void add(Connection connection) {
+            added.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                for (Connection connection = added.poll(); connection != null; connection = added.poll())
+                    open(connection);
+                for (Answer answer = answers.poll(); answer != null; answer = answers.poll()) {
+                    if (answer.pushed)
+                        deliver(answer.connection, answer.response);
+                    else
+                        finish(answer.connection, answer.response);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            flush(connection);
+                        if (key.isValid() && key.isReadable())
+                            read(connection);
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+            }
+        }
+
+        private void open(final Connection connection) {
+            connection.session.setSubscriber(new Session.Subscriber() {
+                @Override
+                public void push(Session session, final Response update) {
+                    connection.lane.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            answer(new Answer(connection, update, true));
+                        }
+                    });
+                }
+            });
+            try {
+                connection.channel.configureBlocking(false);
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                Response hello = server.hello(server.join(connection.session), connection.binary);
+                send(connection, hello);
+                connection.session.sent(hello.length());
+                flush(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        /*
+         * Reads what the client has sent and handles every complete line or
+         * frame.
+         */
+        private void read(Connection connection) throws IOException {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                // answer what the client sent before closing
+                connection.closeWhenFlushed = true;
+                flush(connection);
+                return;
+            }
+            readBuffer.flip();
+            if (connection.binary)
+                readFrames(connection);
+            else
+                readLines(connection);
+            if (connection.channel.isOpen())
+                flush(connection);
+        }
+
+        private void readLines(Connection connection) throws IOException {
+            while (readBuffer.hasRemaining() && !connection.closeWhenFlushed && connection.key.isValid()) {
+                byte b = readBuffer.get();
+                if (connection.skipNewline) {
+                    connection.skipNewline = false;
+                    if (b == '\n')
+                        continue;
+                }
+                if (b == '\n' || b == '\r') {
+                    connection.skipNewline = b == '\r';
+                    // an empty line is as invalid as one too long
+                    connection.command.decode(connection.line, 0,
+                            connection.lineTooLong ? 0 : connection.lineLength);
+                    connection.lineLength = 0;
+                    connection.lineTooLong = false;
+                    handle(connection);
+                } else if (connection.lineLength == MAX_LINE_BYTES) {
+                    connection.lineTooLong = true;
+                } else {
+                    if (connection.lineLength == connection.line.length)
+                        connection.line = Arrays.copyOf(connection.line, 2 * connection.line.length);
+                    connection.line[connection.lineLength++] = b;
+                }
+            }
+        }
+
+        /*
+         * Splits what was read into frames, closing the connection once the
+         * requests before it are answered if it breaks the framing rules of
+         * BinaryProtocol.
+         */
+        private void readFrames(Connection connection) throws IOException {
+            while (readBuffer.hasRemaining() && !connection.closeWhenFlushed && connection.key.isValid()) {
+                byte b = readBuffer.get();
+                if (connection.frameLength < 0) {
+                    connection.lengthValue |= (long) (b & 0x7F) << (7 * connection.lengthBytes++);
+                    if (b < 0) {
+                        if (connection.lengthBytes == BinaryProtocol.MAX_VARINT_BYTES) {
+                            connection.closeWhenFlushed = true;
+                            return;
+                        }
+                        continue;
+                    }
+                    if (connection.lengthValue > BinaryProtocol.MAX_REQUEST_BYTES) {
+                        connection.closeWhenFlushed = true;
+                        return;
+                    }
+                    connection.frameLength = (int) connection.lengthValue;
+                    connection.lengthValue = 0;
+                    connection.lengthBytes = 0;
+                } else {
+                    connection.line[connection.lineLength++] = b;
+                }
+                if (connection.lineLength == connection.frameLength) {
+                    BinaryProtocol.decode(connection.line, 0, connection.lineLength, connection.command);
+                    connection.lineLength = 0;
+                    connection.frameLength = -1;
+                    handle(connection);
+                }
+            }
+        }
+
+        /*
+         * Hands the request just decoded into connection.command to the
+         * connection's lane, which handles it with the same disconnect rules
+         * as the blocking server: bye closes the connection once the requests
+         * before it are answered, and a BOOM closes it once the message is
+         * sent unless the server is in debug mode. Nothing is read after bye.
+         */
+        private void handle(final Connection connection) {
+            final Command.Kind kind = connection.command.getKind();
+            final int x = connection.command.getX();
+            final int y = connection.command.getY();
+            if (kind == Command.Kind.BYE)
+                connection.closeWhenFlushed = true;
+            connection.inFlight++;
+            connection.lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Response response = null;
+                    if (!connection.ended && connection.session.isOpen()) {
+                        response = server.handleRequest(connection.handling.set(kind, x, y), connection.session);
+                        connection.ended = response == MinesweeperServer.TERMINATION
+                                || server.disconnectsAfter(response);
+                    }
+                    answer(new Answer(connection, response, false));
+                }
+            });
+        }
+
+        /*
+         * Hands an answer to this loop. Called from the connection's lane.
+         */
+        private void answer(Answer answer) {
+            answers.add(answer);
+            selector.wakeup();
+        }
+
+        /*
+         * Queues the response to a request handled on the connection's lane, or
+         * drops it if the connection is closed. response is null if the
+         * request was dropped.
+         */
+        private void finish(Connection connection, Response response) {
+            connection.inFlight--;
+            if (!connection.channel.isOpen()) {
+                if (response != null && response != MinesweeperServer.TERMINATION)
+                    response.release();
+                return;
+            }
+            if (response == MinesweeperServer.TERMINATION) {
+                connection.closeWhenFlushed = true;
+            } else if (response != null) {
+                send(connection, response);
+                connection.session.answered(response.length());
+                if (server.disconnectsAfter(response))
+                    connection.closeWhenFlushed = true;
+            }
+            try {
+                flush(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        /*
+         * Writes a board update pushed to the connection after the responses
+         * already queued, or drops it if the connection is closing.
+         */
+        private void deliver(Connection connection, Response update) {
+            if (!connection.channel.isOpen() || connection.closeWhenFlushed) {
+                update.release();
+                connection.session.endPush();
+                return;
+            }
+            send(connection, update);
+            connection.session.sent(update.length());
+            connection.pushPending = true;
+            try {
+                flush(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        /*
+         * Queues response, which the connection now holds a reference to, until
+         * the next flush.
+         */
+        private void send(Connection connection, Response response) {
+            ByteBuffer bytes = response.view();
+            connection.output.add(bytes);
+            connection.responses.add(response);
+            connection.pendingOutput += bytes.remaining();
+        }
+
+        /*
+         * Writes queued output with gathering writes until the socket stops
+         * taking it, releasing each response once it is written.
+         */
+        private void flush(Connection connection) throws IOException {
+            while (!connection.output.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer bytes : connection.output) {
+                    gather[count++] = bytes;
+                    if (count == gather.length)
+                        break;
+                }
+                long written;
+                try {
+                    written = connection.channel.write(gather, 0, count);
+                } finally {
+                    Arrays.fill(gather, 0, count, null);
+                }
+                connection.pendingOutput -= written;
+                while (!connection.output.isEmpty() && !connection.output.peek().hasRemaining()) {
+                    connection.output.remove();
+                    connection.responses.remove().release();
+                }
+                // a partly written head means the socket is full
+                if (written == 0 || !connection.output.isEmpty() && connection.output.peek().position() > 0)
+                    break;
+            }
+            if (connection.output.isEmpty() && connection.pushPending) {
+                connection.pushPending = false;
+                connection.session.endPush();
+            }
+            if (connection.output.isEmpty() && connection.closeWhenFlushed && connection.inFlight == 0)
+                close(connection);
+            else
+                updateInterest(connection);
+        }
+
+        /*
+         * Waits for writability while output is queued, and for requests while
+         * the queue and the requests waiting to be answered are few enough.
+         */
+        private void updateInterest(Connection connection) {
+            int ops = 0;
+            if (!connection.output.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            if (connection.pendingOutput <= MAX_PENDING_OUTPUT
+                    && connection.inFlight < MinesweeperServer.MAX_PENDING_REQUESTS && !connection.closeWhenFlushed)
+                ops |= SelectionKey.OP_READ;
+            connection.key.interestOps(ops);
+        }
+
+        private void close(Connection connection) {
+            server.leave(connection.session);
+            if (connection.pushPending) {
+                connection.pushPending = false;
+                connection.session.endPush();
+            }
+            connection.output.clear();
+            while (!connection.responses.isEmpty())
+                connection.responses.remove().release();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package minesweeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The encoded bytes of a response, ready to be written to any number of
+ * clients. A pooled response lives in a buffer from a BufferPool and counts
+ * its references: whoever holds one, such as a client waiting for it to be
+ * written, must release it when done, and the last release gives the buffer
+ * back to the pool. An unpooled response lives on the heap and needs no
+ * releasing, though releasing it does no harm.
+ */
+final class Response {
+
+    private final ByteBuffer bytes;
+    private final BufferPool pool;
+    private final long version;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /*
+     * Abstraction function: AF(bytes, version) = the response whose bytes are
+     * those from index 0 to bytes.limit(), the rendering of a board as of
+     * version if version >= 0.
+     *
+     * Rep invariant: bytes has position 0 and its contents never change while
+     * references > 0. If pool is non-null, bytes came from pool and is
+     * released to it exactly when references falls to 0, after which
+     * references never rises again.
+     *
+     * Safety from rep exposure argument: bytes is never returned, only views
+     * of it, which share its contents but not its position and limit. Callers
+     * must not write through views, and must hold a reference while they use
+     * one.
+     *
+     * Thread safety argument: bytes is filled before the response is made and
+     * only read afterwards, and the response is only shared through
+     * threadsafe publication. references is atomic, and retain never raises
+     * it from 0, so a buffer given back to the pool is never used again
+     * through this response.
+     */
+
+    /**
+     * Makes a response from bytes already encoded, holding one reference for
+     * its maker.
+     *
+     * @param bytes   the encoded bytes from index 0 to the limit; the response
+     *                takes ownership
+     * @param pool    the pool bytes came from, or null if it is not pooled
+     * @param version the version of the board rendered in bytes, or -1 if it
+     *                is not a board
+     */
+    Response(ByteBuffer bytes, BufferPool pool, long version) {
+        this.bytes = bytes;
+        this.pool = pool;
+        this.version = version;
+    }
+
+    /**
+     * Makes an unpooled response.
+     *
+     * @param bytes the encoded bytes; the response takes ownership
+     * @return the response
+     */
+    static Response of(byte[] bytes) {
+        return new Response(ByteBuffer.wrap(bytes), null, -1);
+    }
+
+    /**
+     *
+     * @return the version of the board this response renders, or -1 if it is
+     *         not a board
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return the number of bytes in this response
+     */
+    int length() {
+        return bytes.limit();
+    }
+
+    /**
+     *
+     * @return a new view of the bytes of this response, positioned at the
+     *         first; only valid while the caller holds a reference
+     */
+    ByteBuffer view() {
+        return bytes.duplicate();
+    }
+
+    /**
+     * Takes another reference to this response, unless it has been released
+     * entirely.
+     *
+     * @return true if the reference was taken
+     */
+    boolean retain() {
+        if (pool == null)
+            return true;
+        for (int count = references.get(); count > 0; count = references.get())
+            if (references.compareAndSet(count, count + 1))
+                return true;
+        return false;
+    }
+
+    /**
+     * Gives up a reference to this response.
+     */
+    void release() {
+        if (pool != null && references.decrementAndGet() == 0)
+            pool.release(bytes);
+    }
+}
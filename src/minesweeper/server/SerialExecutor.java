@@ -0,0 +1,101 @@
+package minesweeper.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor that runs its tasks one at a time, in the order they were
+ * submitted, on the threads of another executor. Many serial executors can
+ * share one pool: tasks given to the same serial executor never overlap and
+ * never run out of order, while tasks given to different ones run in parallel.
+ *
+ * At most MAX_BATCH tasks run back to back before the rest are handed to the
+ * pool again, so a serial executor with a long queue cannot keep one of the
+ * pool's threads from the others.
+ */
+class SerialExecutor implements Executor {
+
+    /** Most tasks run in one turn on a pool thread. */
+    private static final int MAX_BATCH = 64;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /*
+     * Abstraction function: AF(tasks) = the tasks submitted but not yet run, in
+     * the order they will run.
+     *
+     * Rep invariant: pending counts the tasks in tasks, plus the one running if
+     * any, except for a task execute has added but not counted yet. drain is
+     * queued in or running on pool exactly when pending > 0.
+     *
+     * Safety from rep exposure argument: all fields are private and final, and
+     * no method returns them.
+     *
+     * Thread safety argument: tasks and pending are threadsafe. Only the thread
+     * that raises pending from 0 hands drain to the pool, and drain only stops
+     * once it has lowered pending to 0 or handed itself to the pool again, so
+     * at most one thread runs tasks at a time. Each task is run after the
+     * previous one has finished, in the order execute added them to tasks.
+     */
+
+    /**
+     * Makes a serial executor.
+     *
+     * @param pool the executor that runs its tasks
+     */
+    SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs task on the pool after every task submitted before it has run.
+     *
+     * @param task the task; if it throws, an exception is printed and an
+     *             error rethrown to the pool, and the following tasks still run
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0)
+            pool.execute(drain);
+    }
+
+    /*
+     * Runs queued tasks. An Error from a task is rethrown, but only once the
+     * task is uncounted and any tasks after it are handed to the pool, so
+     * that they still run.
+     */
+    private void drain() {
+        for (int ran = 1;; ran++) {
+            Error error = null;
+            try {
+                tasks.poll().run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } catch (Error e) {
+                error = e;
+            }
+            if (pending.decrementAndGet() == 0) {
+                if (error != null)
+                    throw error;
+                return;
+            }
+            if (ran == MAX_BATCH || error != null) {
+                pool.execute(drain);
+                if (error != null)
+                    throw error;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client's connection to a MinesweeperServer, over either protocol: its
+ * channel, the protocol it speaks, how many requests it has had answered and
+ * how many bytes it has been sent, and whether it is still open. A session is
+ * open from when the server registers it until it is closed, which happens
+ * exactly once however many threads try.
+ *
+ * A session can also be pushed board updates, through the Subscriber its
+ * owner gives it, at most one at a time: the server starts a push, and the
+ * subscriber ends it once the update is written.
+ */
+final class Session {
+
+    /**
+     * Where board updates pushed to a session go: the code that writes to the
+     * session's client, which must write each update in between its responses
+     * rather than in the middle of one.
+     */
+    interface Subscriber {
+
+        /**
+         * Writes an update to the client, then releases it and ends the push
+         * of it on session, whether the update could be written or not. Must
+         * not block.
+         *
+         * @param session the session the update is pushed to
+         * @param update  the update, a reference to which passes to the
+         *                subscriber
+         */
+        void push(Session session, Response update);
+    }
+
+    private final long id;
+    private final SocketChannel channel;
+    private final boolean binary;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private volatile long requests = 0;
+    private volatile long bytesSent = 0;
+    private volatile Subscriber subscriber = null;
+    private final AtomicBoolean pushing = new AtomicBoolean(false);
+    private volatile long pushedVersion = -1;
+
+    /*
+     * Abstraction function: AF(id, channel, binary, open, requests, bytesSent,
+     * subscriber, pushing, pushedVersion) = the connection numbered id on
+     * channel, speaking the binary protocol if binary and the text protocol
+     * otherwise, which is connected while open, and has been answered
+     * requests requests in bytesSent bytes. Board updates pushed to it go to
+     * subscriber, or nowhere if it is null; pushing is true while one is
+     * being written, and pushedVersion is the version of the board its client
+     * has been sent by subscribing and the pushes since, or -1 if it has not
+     * subscribed.
+     *
+     * Rep invariant: id >= 0, channel is non-null, requests >= 0 and bytesSent
+     * >= 0. Once open is false it stays false.
+     *
+     * Safety from rep exposure argument: channel is returned, since the
+     * session's owner reads from and writes to it, but the session itself
+     * only closes it. The other fields are private and immutable or
+     * primitive.
+     *
+     * Thread safety argument: open is atomic and only ever changed by the
+     * compareAndSet in close, so one caller closes the session. requests and
+     * bytesSent are volatile so that any thread can read them, and are only
+     * written by the thread answering the client's requests, one at a time.
+     * subscriber is volatile and set by the session's owner before the
+     * session is registered. pushing is atomic, so only one push starts at a
+     * time, and pushedVersion is volatile and only written by the server with
+     * its subscribers locked or while it is pushing.
+     */
+
+    /**
+     * Makes an open session.
+     *
+     * @param id      the session's number, unique among the server's sessions,
+     *                requires id >= 0
+     * @param channel the connected channel to the client
+     * @param binary  true if the client speaks the binary protocol, false for
+     *                the text protocol
+     */
+    Session(long id, SocketChannel channel, boolean binary) {
+        this.id = id;
+        this.channel = channel;
+        this.binary = binary;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert id >= 0 && channel != null && requests >= 0 && bytesSent >= 0;
+    }
+
+    /**
+     *
+     * @return the session's number
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     *
+     * @return the channel to the client
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     *
+     * @return true if the client speaks the binary protocol, false for the
+     *         text protocol
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     *
+     * @return true until the session is closed
+     */
+    boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     *
+     * @return the number of requests answered so far
+     */
+    long getRequests() {
+        return requests;
+    }
+
+    /**
+     *
+     * @return the number of bytes sent to the client so far
+     */
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Records a request answered. Must only be called by the thread answering
+     * the client's requests.
+     *
+     * @param bytes the number of bytes in the response, requires bytes >= 0
+     */
+    void answered(long bytes) {
+        requests++;
+        bytesSent += bytes;
+        checkRep();
+    }
+
+    /**
+     * Records bytes sent other than in answer to a request, such as the
+     * hello message. Must only be called by the thread answering the client's
+     * requests.
+     *
+     * @param bytes the number of bytes sent, requires bytes >= 0
+     */
+    void sent(long bytes) {
+        bytesSent += bytes;
+        checkRep();
+    }
+
+    /**
+     * Sets where board updates pushed to this session go. Must be called
+     * before the session is registered with the server, if at all.
+     *
+     * @param subscriber the subscriber
+     */
+    void setSubscriber(Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    /**
+     *
+     * @return where board updates pushed to this session go, or null if it
+     *         cannot be pushed updates
+     */
+    Subscriber getSubscriber() {
+        return subscriber;
+    }
+
+    /**
+     *
+     * @return the version of the board the client has been sent by
+     *         subscribing and the updates pushed since, or -1 if it has not
+     *         subscribed
+     */
+    long getPushedVersion() {
+        return pushedVersion;
+    }
+
+    /**
+     * Records that the client has been sent, or is being pushed, the board as
+     * of version.
+     *
+     * @param version the board's version, requires version >= 0
+     */
+    void setPushedVersion(long version) {
+        pushedVersion = version;
+    }
+
+    /**
+     * Starts pushing an update to this session, unless one is being pushed
+     * already.
+     *
+     * @return true if the push was started
+     */
+    boolean startPush() {
+        return pushing.compareAndSet(false, true);
+    }
+
+    /**
+     * Ends the push started last, so that another can start.
+     */
+    void endPush() {
+        pushing.set(false);
+    }
+
+    /**
+     * Closes the session and its channel, if it is still open.
+     *
+     * @return true if this call closed the session, false if it was closed
+     *         already
+     */
+    boolean close() {
+        if (!open.compareAndSet(true, false))
+            return false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the connection is gone either way
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "session " + id + " (" + (binary ? "binary" : "text") + ", " + requests + " requests, " + bytesSent
+                + " bytes sent" + (isOpen() ? ")" : ", closed)");
+    }
+}
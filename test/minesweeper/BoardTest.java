@@ -2,6 +2,24 @@ package minesweeper;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 /**
@@ -30,7 +48,52 @@ public class BoardTest {
      * 
      * Partition for dig: Dig at a spot that is flagged, unflagged, previously dug
      * up, and untouched. Make sure we recursively dig more spots if we dig a spot
-     * w/ neighbors w/out bombs.
+     * w/ neighbors w/out bombs. Dig a single spot that opens up a very large
+     * board, which must not overflow the stack.
+     * 
+     * Partition for toString: before and after a successful and an unsuccessful
+     * operation, which must leave the version and the rendering unchanged.
+     * 
+     * Partition for seeded boards: same seed with different numbers of
+     * generating threads, different seeds.
+     * 
+     * Partition for exact mine counts: no mines, some mines, every location
+     * mined, too many mines; seeded and unseeded.
+     * 
+     * Partition for load: newlines are \n, \r\n, \r, or missing at the end of
+     * the file; file is valid, has a bad header, a bad value, a short row, too
+     * few rows, too many rows.
+     * 
+     * Partition for save: with and without the status layer, seeded and
+     * unseeded boards, cell counts that are and are not a multiple of 8; loading
+     * autodetects the binary format, and rejects a truncated file; files in
+     * the older format without a version, and files in an unknown format or
+     * with unknown flags, which are rejected.
+     * 
+     * Partition for journal: recover with an empty log, a log of digs, flags and
+     * deflags, a log whose last record is cut short, after a periodic snapshot
+     * has emptied the log, a log with a dig that has no effect on replay, where
+     * replay stops; recover the recovered board again; a
+     * journal that cannot write its snapshot fails and says why.
+     * 
+     * Partition for snapshot: taken before and after operations, and while other
+     * threads are changing the board.
+     * 
+     * Partition for striped locking: concurrent digs, flags and deflags from
+     * several threads on a board split into many tiles, with and without bombs;
+     * openings across many tiles racing each other and flags and deflags,
+     * replayed in version order.
+     * 
+     * Partition for lock-free flag and deflag: many threads racing to flag or
+     * deflag one location, on and off the heap; racing flags and deflags
+     * replayed in version order.
+     * 
+     * Partition for storage: on the heap and off it, compared operation by
+     * operation; released boards reject further use, including by threads
+     * still playing when the board is released, and are released again to no
+     * effect.
+     * 
+     * Partition for check level: off, incremental, full.
      * 
      * Test each case at least once.
      *
@@ -102,4 +165,704 @@ public class BoardTest {
         System.out.println ( Integer.valueOf(String.valueOf('2')) );
         
     }
+
+    @Test
+    public void testToStringAfterBoom() {
+        Board board = new Board(mix);
+        assertEquals("- - -\n- - -\n- - -\n", board.toString());
+        assertEquals(false, board.dig(1, 1));
+        assertEquals("- - -\n- 3 -\n- - -\n", board.toString());
+        assertEquals(true, board.dig(0, 2));
+        assertEquals("  1 -\n  2 -\n  1 -\n", board.toString());
+        assertEquals(true, board.flag(2, 2));
+        assertEquals("  1 -\n  2 -\n  1 F\n", board.toString());
+    }
+
+    @Test
+    public void testLargeOpening() {
+        Board board = new Board(2000, 2000, 0);
+        assertEquals(false, board.dig(1000, 1000));
+        assertEquals('0', board.status(0, 0));
+        assertEquals('0', board.status(1999, 1999));
+        assertEquals(false, board.flag(0, 1999));
+    }
+
+    @Test
+    public void testBoomUpdatesUntouchedNeighbors() {
+        Board board = new Board(new int[][] { { 1, 1 }, { 0, 0 } });
+        assertEquals(true, board.dig(0, 0));
+        assertEquals('1', board.status(0, 0));
+        assertEquals(untouched, board.status(0, 1));
+        assertEquals(false, board.dig(0, 1));
+        assertEquals('1', board.status(0, 1));
+    }
+
+    @Test
+    public void testCheckLevels() {
+        Board board = new Board(500, 500, 0.1);
+        assertEquals(Board.CheckLevel.FULL, board.getCheckLevel());
+
+        board.setCheckLevel(Board.CheckLevel.OFF);
+        long checks = board.getCheckCount();
+        assertEquals(true, board.flag(0, 0));
+        assertEquals(checks, board.getCheckCount());
+
+        board.setCheckLevel(Board.CheckLevel.INCREMENTAL);
+        assertEquals(true, board.deflag(0, 0));
+        board.dig(250, 250);
+        assertEquals(checks + 2, board.getCheckCount());
+
+        board.setCheckLevel(Board.CheckLevel.FULL);
+        assertEquals(true, board.flag(0, 0));
+        assertEquals(checks + 3, board.getCheckCount());
+        assertTrue(board.getCheckNanos() > 0);
+    }
+
+    @Test
+    public void testRenderingSharedPerVersion() {
+        Board board = new Board(mix);
+        String before = board.toString();
+        assertSame(before, board.toString());
+        assertEquals(0, board.getVersion());
+
+        assertEquals(false, board.deflag(0, 0));
+        assertEquals(0, board.getVersion());
+        assertSame(before, board.toString());
+
+        assertEquals(true, board.flag(0, 0));
+        assertEquals(1, board.getVersion());
+        assertEquals("F - -\n- - -\n- - -\n", board.toString());
+        assertEquals("- - -\n- - -\n- - -\n", before);
+    }
+
+    private static Board stripedBoard(int size, double probabilityMine) {
+        System.setProperty(Board.TILE_SIZE_PROPERTY, "8");
+        try {
+            return new Board(size, size, probabilityMine);
+        } finally {
+            System.clearProperty(Board.TILE_SIZE_PROPERTY);
+        }
+    }
+
+    private static void playConcurrently(final Board board, int threads, final int moves) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < moves; i++) {
+                        int x = random.nextInt(board.getWidth());
+                        int y = random.nextInt(board.getHeight());
+                        switch (random.nextInt(4)) {
+                        case 0:
+                            board.flag(x, y);
+                            break;
+                        case 1:
+                            board.deflag(x, y);
+                            break;
+                        default:
+                            board.dig(x, y);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results)
+            result.get();
+        pool.shutdown();
+    }
+
+    @Test(timeout = 60000)
+    public void testStripedConcurrentOpenings() throws Exception {
+        Board board = stripedBoard(120, 0);
+        board.setCheckLevel(Board.CheckLevel.INCREMENTAL);
+        playConcurrently(board, 8, 200);
+
+        for (int x = 0; x < 120; x++) {
+            for (int y = 0; y < 120; y++) {
+                if (board.status(x, y) != '0')
+                    continue;
+                for (int i = Math.max(x - 1, 0); i < Math.min(x + 2, 120); i++)
+                    for (int j = Math.max(y - 1, 0); j < Math.min(y + 2, 120); j++)
+                        assertNotEquals(untouched, board.status(i, j));
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testStripedConcurrentPlay() throws Exception {
+        Board board = stripedBoard(100, 0.2);
+        board.setCheckLevel(Board.CheckLevel.INCREMENTAL);
+        playConcurrently(board, 8, 2000);
+
+        board.setCheckLevel(Board.CheckLevel.FULL);
+        String before = board.toString();
+        board.flag(0, 0);
+        board.deflag(0, 0);
+        assertEquals(before.substring(1), board.toString().substring(1));
+    }
+
+    @Test(timeout = 60000)
+    public void testStripedOpeningsReplayInVersionOrder() throws Exception {
+        final Board board = seededStripedBoard(64, 0.03, 16);
+        final long[][] log = new long[100_000][];
+        board.setListener(new Board.Listener() {
+            @Override
+            public void changed(long version, Board.Operation op, int x, int y) {
+                log[(int) version - 1] = new long[] { op.ordinal(), x, y };
+            }
+        });
+        playConcurrently(board, 8, 3000);
+
+        Board replayed = seededStripedBoard(64, 0.03, 16);
+        for (int v = 0; v < board.getVersion(); v++) {
+            int x = (int) log[v][1];
+            int y = (int) log[v][2];
+            if (log[v][0] == Board.Operation.FLAG.ordinal())
+                replayed.flag(x, y);
+            else if (log[v][0] == Board.Operation.DEFLAG.ordinal())
+                replayed.deflag(x, y);
+            else
+                replayed.dig(x, y);
+            assertEquals(v + 1, replayed.getVersion());
+        }
+        assertEquals(board.toString(), replayed.toString());
+    }
+
+    private static Board seededStripedBoard(int size, double probabilityMine, long seed) {
+        System.setProperty(Board.TILE_SIZE_PROPERTY, "4");
+        try {
+            return new Board(size, size, probabilityMine, seed);
+        } finally {
+            System.clearProperty(Board.TILE_SIZE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        Board board = new Board(mix);
+        BoardSnapshot before = board.snapshot();
+        assertEquals(0, before.getVersion());
+        assertSame(before, board.snapshot());
+
+        assertEquals(false, board.dig(1, 1));
+        BoardSnapshot after = board.snapshot();
+        assertEquals(1, after.getVersion());
+        assertEquals(untouched, before.status(1, 1));
+        assertEquals('3', after.status(1, 1));
+        assertEquals(board.toString(), after.toString());
+        assertEquals(3, after.getWidth());
+        assertEquals(3, after.getHeight());
+    }
+
+    @Test(timeout = 60000)
+    public void testSnapshotsDuringPlay() throws Exception {
+        final Board board = stripedBoard(100, 0.2);
+        board.setCheckLevel(Board.CheckLevel.OFF);
+        final AtomicBoolean playing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<?> reader = pool.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                long lastVersion = -1;
+                while (playing.get()) {
+                    BoardSnapshot snapshot = board.snapshot();
+                    assertTrue(snapshot.getVersion() >= lastVersion);
+                    lastVersion = snapshot.getVersion();
+                }
+                return null;
+            }
+        });
+        try {
+            playConcurrently(board, 4, 2000);
+        } finally {
+            playing.set(false);
+            pool.shutdown();
+        }
+        // rethrows what failed in the reader
+        reader.get();
+
+        BoardSnapshot end = board.snapshot();
+        assertEquals(board.getVersion(), end.getVersion());
+        for (int x = 0; x < 100; x++)
+            for (int y = 0; y < 100; y++)
+                assertEquals(board.status(x, y), end.status(x, y));
+    }
+
+    private static Board seededBoard(int threads, final long seed) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(() -> new Board(300, 400, 0.2, seed)).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Digs every location of board in order, returning which digs hit a bomb
+     * followed by the final board.
+     */
+    private static String digAll(Board board) {
+        board.setCheckLevel(Board.CheckLevel.INCREMENTAL);
+        StringBuilder booms = new StringBuilder();
+        for (int y = 0; y < board.getHeight(); y++)
+            for (int x = 0; x < board.getWidth(); x++)
+                booms.append(board.dig(x, y) ? '1' : '0');
+        return booms + "\n" + board;
+    }
+
+    @Test
+    public void testSeededBoards() throws Exception {
+        String single = digAll(seededBoard(1, 42));
+        assertEquals(single, digAll(seededBoard(4, 42)));
+        assertEquals(single, digAll(new Board(300, 400, 0.2, 42)));
+        assertNotEquals(single, digAll(seededBoard(4, 43)));
+    }
+
+    private static int countBooms(Board board) {
+        String booms = digAll(board);
+        return booms.substring(0, booms.indexOf('\n')).replace("0", "").length();
+    }
+
+    @Test
+    public void testExactMineCount() {
+        assertEquals(0, countBooms(Board.withMineCount(20, 30, 0)));
+        assertEquals(37, countBooms(Board.withMineCount(20, 30, 37)));
+        assertEquals(600, countBooms(Board.withMineCount(20, 30, 600)));
+        assertEquals(1, countBooms(Board.withMineCount(1, 1, 1, 5)));
+
+        assertEquals(digAll(Board.withMineCount(50, 40, 300, 9)), digAll(Board.withMineCount(50, 40, 300, 9)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyMines() {
+        Board.withMineCount(3, 3, 10);
+    }
+
+    private static Board load(String contents) throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        try {
+            Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+            return Board.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertLoadFails(String contents, String message) throws IOException {
+        try {
+            load(contents);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        Board board = load("3 2\n0 0 1\r\n1 0 0\n");
+        assertEquals(3, board.getWidth());
+        assertEquals(2, board.getHeight());
+        assertEquals(false, board.dig(1, 0));
+        assertEquals('2', board.status(1, 0));
+        assertEquals(true, board.dig(0, 1));
+
+        board = load("1 3\r1\r0\r\n0");
+        assertEquals(true, board.dig(0, 0));
+        assertEquals(false, board.dig(0, 2));
+        assertEquals("0\n0\n0\n".replace('0', ' '), board.toString());
+    }
+
+    @Test
+    public void testLoadErrors() throws IOException {
+        assertLoadFails("3x2\n", "line 1, column 2: expected a space");
+        assertLoadFails("3 0\n", "line 1, column 3: board dimensions must be positive");
+        assertLoadFails("2 2\n0 0\n0 2\n", "line 3, column 3: expected '0' or '1'");
+        assertLoadFails("2 2\n0 0\n0\n", "line 3, column 2: expected a space");
+        assertLoadFails("2 2\n0 0 \n0 0\n", "line 2, column 4: expected end of line after 2 values");
+        assertLoadFails("2 2\n0 0\n", "line 3, column 1: expected 2 rows but found 1");
+        assertLoadFails("2 2\n0 0\n0 0\n\n", "line 4, column 1: expected end of file after 2 rows");
+    }
+
+    private static Board saveAndLoad(Board board, boolean includeStatus) throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            board.save(file, includeStatus);
+            return Board.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Board board = Board.withMineCount(13, 7, 20, 42);
+        board.flag(0, 0);
+        board.dig(6, 3);
+        board.dig(12, 6);
+        board.flag(5, 5);
+
+        Board restored = saveAndLoad(board, true);
+        assertEquals(board.toString(), restored.toString());
+        assertEquals(board.getSeed(), restored.getSeed());
+        assertEquals(board.getVersion(), restored.getVersion());
+
+        Board fresh = saveAndLoad(board, false);
+        assertEquals(13, fresh.getWidth());
+        assertEquals(7, fresh.getHeight());
+        assertEquals(digAll(Board.withMineCount(13, 7, 20, 42)), digAll(fresh));
+
+        Board unseeded = saveAndLoad(new Board(4, 2, 0.5), true);
+        assertFalse(unseeded.getSeed().isPresent());
+        assertEquals("- - - -\n- - - -\n", unseeded.toString());
+    }
+
+    @Test
+    public void testLoadTruncatedBinary() throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            new Board(20, 20, 0.3, 1).save(file, true);
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+            Board.load(file);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("expected"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Loads a binary board file holding bytes.
+     */
+    private static Board loadBinary(byte... bytes) throws IOException {
+        File file = File.createTempFile("board", ".bin");
+        try {
+            Files.write(file.toPath(), bytes);
+            return Board.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadBinaryFormats() throws IOException {
+        // format 1: no flags, 2x1, bomb at 0,0
+        Board old = loadBinary((byte) 'M', (byte) 'S', (byte) 'W', (byte) 'B', (byte) 1, (byte) 0, (byte) 0,
+                (byte) 0, (byte) 0, (byte) 2, (byte) 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0x01);
+        assertEquals(0, old.getVersion());
+        assertEquals(true, old.dig(0, 0));
+
+        for (int[] header : new int[][] { { 3, 0 }, { 2, 0x04 } }) {
+            try {
+                loadBinary((byte) 'M', (byte) 'S', (byte) 'W', (byte) 'B', (byte) header[0], (byte) header[1],
+                        (byte) 0, (byte) 0, (byte) 0, (byte) 2, (byte) 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0,
+                        (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0x01);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("unsupported"));
+            }
+        }
+    }
+
+    private static File journalDirectory() throws IOException {
+        File directory = Files.createTempDirectory("journal").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void deleteJournal(File directory) {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testJournalRecovery() throws IOException {
+        File directory = journalDirectory();
+        try {
+            Board board = Board.withMineCount(30, 20, 60, 3);
+            assertFalse(BoardJournal.canRecover(directory));
+            BoardJournal journal = new BoardJournal(board, directory, Long.MAX_VALUE);
+            assertTrue(BoardJournal.canRecover(directory));
+            assertEquals(board.toString(), BoardJournal.recover(directory).toString());
+
+            Random random = new Random(5);
+            for (int i = 0; i < 300; i++) {
+                int x = random.nextInt(30);
+                int y = random.nextInt(20);
+                switch (random.nextInt(3)) {
+                case 0:
+                    board.dig(x, y);
+                    break;
+                case 1:
+                    board.flag(x, y);
+                    break;
+                default:
+                    board.deflag(x, y);
+                }
+            }
+            journal.close();
+
+            Board recovered = BoardJournal.recover(directory);
+            assertEquals(board.getVersion(), recovered.getVersion());
+            assertEquals(board.toString(), recovered.toString());
+
+            File log = new File(directory, BoardJournal.LOG_FILE);
+            byte[] bytes = Files.readAllBytes(log.toPath());
+            Files.write(log.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+            assertEquals(board.getVersion() - 1, BoardJournal.recover(directory).getVersion());
+
+            journal = new BoardJournal(recovered, directory, Long.MAX_VALUE);
+            recovered.dig(0, 0);
+            recovered.flag(29, 19);
+            journal.close();
+            assertEquals(recovered.toString(), BoardJournal.recover(directory).toString());
+        } finally {
+            deleteJournal(directory);
+        }
+    }
+
+    @Test
+    public void testJournalReplayWithNoEffect() throws IOException {
+        File directory = journalDirectory();
+        try {
+            Board board = new Board(4, 4, 0.0);
+            BoardJournal journal = new BoardJournal(board, directory, Long.MAX_VALUE);
+            assertTrue(board.flag(0, 0));
+            assertFalse(board.dig(3, 3));
+            assertTrue(board.deflag(0, 0));
+            assertFalse(board.dig(0, 0));
+            journal.close();
+
+            // start replay from a board on which the logged dig of 3,3 has no
+            // effect, so the snapshot does not match the log
+            byte[] cells = new byte[16];
+            Arrays.fill(cells, (byte) Board.STATE_DUG);
+            cells[0] = Board.STATE_UNTOUCHED;
+            new Board(4, 4, cells, OptionalLong.empty(), 0).save(new File(directory, BoardJournal.SNAPSHOT_FILE),
+                    true);
+            Board recovered = BoardJournal.recover(directory);
+            assertEquals(1, recovered.getVersion());
+            assertEquals(flagged, recovered.status(0, 0));
+        } finally {
+            deleteJournal(directory);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testJournalFailure() throws Exception {
+        File directory = journalDirectory();
+        try {
+            Board board = new Board(5, 5, 0.0);
+            BoardJournal journal = new BoardJournal(board, directory, 1);
+            // a directory where the next snapshot is written makes saving it fail
+            assertTrue(new File(directory, BoardJournal.SNAPSHOT_FILE + ".tmp").mkdir());
+            Thread.sleep(2);
+            board.flag(1, 1);
+            assertNotNull(journal.awaitFailure());
+            try {
+                journal.close();
+                fail("expected IOException");
+            } catch (IOException e) {
+                // the failure is reported again
+            }
+        } finally {
+            deleteJournal(directory);
+        }
+    }
+
+    @Test
+    public void testJournalSnapshots() throws Exception {
+        File directory = journalDirectory();
+        try {
+            Board board = new Board(40, 40, 0.1, 8);
+            BoardJournal journal = new BoardJournal(board, directory, 1);
+            for (int x = 0; x < 40; x++) {
+                board.flag(x, 0);
+                Thread.sleep(1);
+            }
+            journal.close();
+            assertTrue(new File(directory, BoardJournal.LOG_FILE).length() < 40 * 21);
+            assertEquals(board.toString(), BoardJournal.recover(directory).toString());
+        } finally {
+            deleteJournal(directory);
+        }
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        System.setProperty(Board.STORAGE_PROPERTY, "offheap");
+        Board offHeap;
+        try {
+            offHeap = Board.withMineCount(60, 40, 300, 12);
+        } finally {
+            System.clearProperty(Board.STORAGE_PROPERTY);
+        }
+        Board onHeap = Board.withMineCount(60, 40, 300, 12);
+
+        Random random = new Random(13);
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(60);
+            int y = random.nextInt(40);
+            if (random.nextBoolean()) {
+                assertEquals(onHeap.dig(x, y), offHeap.dig(x, y));
+            } else {
+                assertEquals(onHeap.flag(x, y), offHeap.flag(x, y));
+            }
+        }
+        assertEquals(onHeap.toString(), offHeap.toString());
+
+        offHeap.release();
+        try {
+            offHeap.status(0, 0);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // released storage is never read
+        }
+        // releasing again has no further effect
+        offHeap.release();
+    }
+
+    @Test
+    public void testReleaseDuringPlay() throws Exception {
+        System.setProperty(Board.STORAGE_PROPERTY, "offheap");
+        final Board board;
+        try {
+            board = Board.withMineCount(40, 30, 100, 14);
+        } finally {
+            System.clearProperty(Board.STORAGE_PROPERTY);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> players = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final Random random = new Random(t);
+                players.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int operations = 0;
+                        try {
+                            while (true) {
+                                int x = random.nextInt(40);
+                                int y = random.nextInt(30);
+                                switch (operations++ % 4) {
+                                case 0:
+                                    board.flag(x, y);
+                                    break;
+                                case 1:
+                                    board.deflag(x, y);
+                                    break;
+                                case 2:
+                                    board.status(x, y);
+                                    break;
+                                default:
+                                    board.snapshot();
+                                }
+                            }
+                        } catch (IllegalStateException e) {
+                            return operations;
+                        }
+                    }
+                }));
+            }
+            Thread.sleep(100);
+            board.release();
+            for (Future<Integer> player : players)
+                assertTrue(player.get() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Has threads race to apply flag, or deflag if flag is false, to location
+     * 1,1 of board, returning how many succeeded.
+     */
+    private static int race(final Board board, int threads, final boolean flag) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final AtomicInteger successes = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    if (flag ? board.flag(1, 1) : board.deflag(1, 1))
+                        successes.incrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> result : results)
+            result.get();
+        pool.shutdown();
+        return successes.get();
+    }
+
+    @Test(timeout = 60000)
+    public void testRacingFlags() throws Exception {
+        for (String storage : new String[] { "heap", "offheap" }) {
+            System.setProperty(Board.STORAGE_PROPERTY, storage);
+            Board board;
+            try {
+                board = new Board(3, 3, 0.5, 14);
+            } finally {
+                System.clearProperty(Board.STORAGE_PROPERTY);
+            }
+            for (int round = 0; round < 50; round++) {
+                assertEquals(1, race(board, 8, true));
+                assertEquals(flagged, board.status(1, 1));
+                assertEquals(1, race(board, 8, false));
+                assertEquals(untouched, board.status(1, 1));
+            }
+            assertEquals(100, board.getVersion());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRacingFlagsReplayInVersionOrder() throws Exception {
+        final Board board = new Board(4, 4, 0.5, 15);
+        final long[][] log = new long[100_000][];
+        board.setListener(new Board.Listener() {
+            @Override
+            public void changed(long version, Board.Operation op, int x, int y) {
+                log[(int) version - 1] = new long[] { op.ordinal(), x, y };
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final Random random = new Random(t);
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        if (random.nextBoolean())
+                            board.flag(random.nextInt(4), random.nextInt(4));
+                        else
+                            board.deflag(random.nextInt(4), random.nextInt(4));
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results)
+            result.get();
+        pool.shutdown();
+
+        Board replayed = new Board(4, 4, 0.5, 15);
+        for (int v = 0; v < board.getVersion(); v++) {
+            int x = (int) log[v][1];
+            int y = (int) log[v][2];
+            if (log[v][0] == Board.Operation.FLAG.ordinal())
+                assertTrue(replayed.flag(x, y));
+            else
+                assertTrue(replayed.deflag(x, y));
+        }
+        assertEquals(board.toString(), replayed.toString());
+    }
 }
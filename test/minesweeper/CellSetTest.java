@@ -0,0 +1,80 @@
+package minesweeper;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for CellSet.
+ */
+public class CellSetTest {
+
+    /*
+     * Testing strategy:
+     *
+     * Partition the members of a block: none, a few, around ARRAY_LIMIT, far
+     * more, and back down below ARRAY_LIMIT / 2.
+     *
+     * Partition the operations: add and remove of members and non-members,
+     * contains, compared against a TreeSet; adds and removes alternating at
+     * the array limit.
+     */
+
+    private static void assertSame(TreeSet<Long> expected, CellSet actual, long from, long to) {
+        assertEquals(expected.size(), actual.size());
+        for (long cell = from; cell < to; cell++)
+            assertEquals(expected.contains(cell), actual.contains(cell));
+    }
+
+    @Test
+    public void testAgainstTreeSet() {
+        Random random = new Random(7);
+        TreeSet<Long> expected = new TreeSet<>();
+        CellSet actual = new CellSet();
+        long range = 3L * CellSet.BLOCK_CELLS;
+        // grow past the array limit, then shrink back below half of it
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 30000; i++) {
+                long cell = random.nextInt((int) range);
+                assertEquals(expected.add(cell), actual.add(cell));
+            }
+            assertSame(expected, actual, 0, range);
+            for (int i = 0; i < 200000; i++) {
+                long cell = random.nextInt((int) range);
+                assertEquals(expected.remove(cell), actual.remove(cell));
+            }
+            assertSame(expected, actual, 0, range);
+        }
+    }
+
+    @Test
+    public void testAlternatingAtArrayLimit() {
+        TreeSet<Long> expected = new TreeSet<>();
+        CellSet actual = new CellSet();
+        for (long cell = 0; cell < 4096; cell++) {
+            expected.add(2 * cell);
+            actual.add(2 * cell);
+        }
+        long arrayBytes = actual.containerBytes();
+        assertTrue(actual.add(1));
+        long bitmapBytes = actual.containerBytes();
+        assertTrue(bitmapBytes > arrayBytes);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(actual.remove(1));
+            assertTrue(actual.add(1));
+            assertEquals(bitmapBytes, actual.containerBytes());
+        }
+        expected.add(1L);
+        assertSame(expected, actual, 0, CellSet.BLOCK_CELLS);
+
+        for (long cell = 0; cell < 4096; cell++) {
+            expected.remove(2 * cell);
+            actual.remove(2 * cell);
+        }
+        assertTrue(actual.containerBytes() < arrayBytes);
+        assertSame(expected, actual, 0, CellSet.BLOCK_CELLS);
+    }
+}
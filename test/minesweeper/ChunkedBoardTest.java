@@ -0,0 +1,304 @@
+package minesweeper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for ChunkedBoard.
+ */
+public class ChunkedBoardTest {
+
+    /*
+     * Testing strategy:
+     *
+     * Partition the board size: a single partial chunk, several chunks with
+     * partial chunks at the right and bottom edges, far larger than memory.
+     *
+     * Partition maxResident: enough for every chunk, fewer than a single
+     * operation touches, so chunks are evicted and spilled and read back.
+     *
+     * Partition the operations: dig, flag, deflag and status, compared against
+     * a Board with the same bombs; digs that open areas crossing chunk
+     * boundaries, and areas spanning far more chunks than maxResident.
+     *
+     * Partition the frontier of an opening: within one page, many pages out
+     * at once, emptied and refilled.
+     *
+     * Partition the status layer: few locations played, so it stays small;
+     * more than 4096 locations flagged in one block, then most deflagged again.
+     *
+     * Partition the spill directory: shared by two boards, holding files left
+     * by an earlier board, released.
+     *
+     * Partition snapshot: before and after changes, of a board larger than
+     * memory, of a board too large to snapshot.
+     */
+
+    private static File spillDirectory() throws IOException {
+        File directory = Files.createTempDirectory("chunks").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory())
+                delete(file);
+            else
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /*
+     * Plays the same random operations on chunked and on a Board with the same
+     * bombs, checking that they agree throughout.
+     */
+    private static void playAgainstBoard(ChunkedBoard chunked, int operations, long seed) {
+        int width = chunked.getWidth();
+        int height = chunked.getHeight();
+        int[][] map = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                map[y][x] = chunked.mineAt(x, y) ? 1 : 0;
+        Board board = new Board(map);
+        board.setCheckLevel(Board.CheckLevel.INCREMENTAL);
+
+        Random random = new Random(seed);
+        for (int i = 0; i < operations; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(board.dig(x, y), chunked.dig(x, y));
+                break;
+            case 1:
+                assertEquals(board.flag(x, y), chunked.flag(x, y));
+                break;
+            default:
+                assertEquals(board.deflag(x, y), chunked.deflag(x, y));
+            }
+            assertEquals(board.status(x, y), chunked.status(x, y));
+        }
+        assertEquals(board.getVersion(), chunked.getVersion());
+        assertEquals(board.toString(), chunked.look(0, 0, width, height));
+        assertEquals(board.toString(), chunked.toString());
+        assertEquals(board.getVersion(), chunked.snapshot().getVersion());
+    }
+
+    @Test
+    public void testSmallBoard() throws IOException {
+        File directory = spillDirectory();
+        try {
+            playAgainstBoard(new ChunkedBoard(10, 7, 0.2, 1, 4, directory), 100, 2);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testEvictionAndSpill() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(200, 150, 0.1, 3, 1, directory);
+            playAgainstBoard(chunked, 500, 4);
+            assertEquals(1, chunked.getResidentChunks());
+            assertTrue(chunked.getSpilledChunks() > 0);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testOpeningAcrossChunks() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(300, 100, 0.0, 5, 2, directory);
+            assertFalse(chunked.dig(150, 50));
+            assertEquals('0', chunked.status(0, 0));
+            assertEquals('0', chunked.status(299, 99));
+            assertEquals(2, chunked.getResidentChunks());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testOpeningLargerThanMemory() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(700, 600, 0.002, 8, 2, directory);
+            int[][] map = new int[600][700];
+            for (int y = 0; y < 600; y++)
+                for (int x = 0; x < 700; x++)
+                    map[y][x] = chunked.mineAt(x, y) ? 1 : 0;
+            Board board = new Board(map);
+            int peak = chunked.getPeakResidentChunks();
+
+            int x = 350;
+            int y = 300;
+            while (chunked.mineAt(x, y))
+                x++;
+            assertEquals(board.dig(x, y), chunked.dig(x, y));
+            assertTrue(chunked.getPeakResidentChunks() <= Math.max(peak, 2 + 4));
+            assertEquals(board.toString(), chunked.look(0, 0, 700, 600));
+            assertEquals(1, directory.list().length);
+            assertEquals(0, directory.listFiles()[0].list().length);
+            assertTrue(chunked.getResidentChunks() <= 2);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testFrontierPaging() throws IOException {
+        File directory = spillDirectory();
+        try {
+            File file = new File(directory, "frontier");
+            ChunkedBoard.Frontier frontier = new ChunkedBoard.Frontier(file, 16);
+            Random random = new Random(9);
+            List<Long> expected = new ArrayList<>();
+            List<Long> removed = new ArrayList<>();
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 1000; i++) {
+                    long location = random.nextLong();
+                    frontier.add(location);
+                    expected.add(location);
+                    if (i % 3 == 0)
+                        removed.add(frontier.remove());
+                }
+                assertTrue(file.isFile());
+                while (!frontier.isEmpty())
+                    removed.add(frontier.remove());
+            }
+            frontier.close();
+            assertFalse(file.exists());
+            Collections.sort(expected);
+            Collections.sort(removed);
+            assertEquals(expected, removed);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testGiantBoard() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(1_000_000, 1_000_000, 0.2, 6, 16, directory);
+            ChunkedBoard same = new ChunkedBoard(1_000_000, 1_000_000, 0.2, 6, 16, spillDirectory());
+            chunked.flag(999_999, 999_999);
+            chunked.dig(500_000, 123_456);
+            assertEquals('F', chunked.status(999_999, 999_999));
+            assertEquals(same.mineAt(0, 0), chunked.mineAt(0, 0));
+            assertEquals(same.look(400_000, 700_000, 3, 2), chunked.look(400_000, 700_000, 3, 2));
+            assertTrue(chunked.getResidentChunks() <= 16);
+            assertTrue(chunked.getStatusBytes() < 1024);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testStatusLayer() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(300, 300, 1.0, 7, 8, directory);
+            assertEquals(0, chunked.getVersion());
+            for (int y = 0; y < 100; y++)
+                for (int x = 0; x < 100; x++)
+                    assertTrue(chunked.flag(x, y));
+            assertEquals('F', chunked.status(99, 99));
+            assertEquals('-', chunked.status(100, 99));
+            long bitmapBytes = chunked.getStatusBytes();
+
+            for (int y = 0; y < 100; y++)
+                for (int x = 0; x < 100; x++)
+                    if (x != y)
+                        assertTrue(chunked.deflag(x, y));
+            assertFalse(chunked.deflag(1, 0));
+            assertEquals('F', chunked.status(42, 42));
+            assertEquals('-', chunked.status(42, 43));
+            assertTrue(chunked.getStatusBytes() < bitmapBytes);
+            assertTrue(chunked.dig(250, 250));
+            assertEquals('8', chunked.status(250, 250));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testSpillDirectoryPerBoard() throws IOException {
+        File directory = spillDirectory();
+        try {
+            // a chunk full of bombs, as a board that had used the directory
+            // before might have left
+            byte[] full = new byte[ChunkedBoard.CHUNK_SIZE * ChunkedBoard.CHUNK_SIZE / 8];
+            Arrays.fill(full, (byte) -1);
+            Files.write(new File(directory, "0_0.chunk").toPath(), full);
+
+            File elsewhere = spillDirectory();
+            ChunkedBoard expected = new ChunkedBoard(200, 150, 0.1, 3, 1, elsewhere);
+            ChunkedBoard first = new ChunkedBoard(200, 150, 0.1, 3, 1, directory);
+            ChunkedBoard second = new ChunkedBoard(200, 150, 0.1, 3, 1, directory);
+            for (int y = 0; y < 150; y++)
+                for (int x = 0; x < 200; x++)
+                    assertEquals(expected.mineAt(x, y), first.mineAt(x, y));
+            expected.release();
+            elsewhere.delete();
+
+            // both spill, and neither reads back the other's chunks
+            playAgainstBoard(first, 500, 4);
+            playAgainstBoard(second, 500, 5);
+            assertTrue(first.getSpilledChunks() > 0);
+            assertTrue(second.getSpilledChunks() > 0);
+
+            int before = directory.list().length;
+            first.release();
+            assertEquals(before - 1, directory.list().length);
+            first.release();
+            assertEquals(before - 1, directory.list().length);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        File directory = spillDirectory();
+        try {
+            ChunkedBoard chunked = new ChunkedBoard(300, 200, 0.05, 9, 2, directory);
+            BoardSnapshot before = chunked.snapshot();
+            assertSame(before, chunked.snapshot());
+            assertEquals(0, before.getVersion());
+            assertTrue(chunked.getResidentChunks() <= 2);
+
+            assertTrue(chunked.flag(299, 199));
+            BoardSnapshot after = chunked.snapshot();
+            assertEquals(1, after.getVersion());
+            assertEquals('F', after.status(299, 199));
+            assertEquals('-', before.status(299, 199));
+            assertEquals(chunked.look(0, 0, 300, 200), after.toString());
+
+            ChunkedBoard giant = new ChunkedBoard(1_000_000, 1_000_000, 0.2, 6, 16, directory);
+            try {
+                giant.snapshot();
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+}
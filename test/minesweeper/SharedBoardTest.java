@@ -0,0 +1,270 @@
+package minesweeper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for SharedBoard.
+ */
+public class SharedBoardTest {
+
+    /*
+     * Testing strategy:
+     *
+     * Partition the number of mappings of the file: one, two dug at once from
+     * several threads each, as separate processes would.
+     *
+     * Partition the operations: dig, flag, deflag and status, compared against
+     * a Board with the same bombs; digs that set off bombs next to dug
+     * locations; size not a multiple of 4, so the last word of the file is
+     * partly padding.
+     *
+     * Partition the file: created, created again while it exists, not a shared
+     * board file, mapped by as many processes as it has slots and then one
+     * more, with an operation in progress in a live process, left with an
+     * operation started but never finished by a separate process that died.
+     */
+
+    private static File boardFile() throws IOException {
+        File directory = Files.createTempDirectory("shared").toFile();
+        directory.deleteOnExit();
+        File file = new File(directory, "board");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static int countMines(SharedBoard board, int x, int y) {
+        int count = 0;
+        for (int nx = Math.max(x - 1, 0); nx < Math.min(x + 2, board.getWidth()); nx++)
+            for (int ny = Math.max(y - 1, 0); ny < Math.min(y + 2, board.getHeight()); ny++)
+                if ((nx != x || ny != y) && board.mineAt(nx, ny))
+                    count++;
+        return count;
+    }
+
+    @Test
+    public void testMatchesBoard() throws IOException {
+        Board board = new Board(13, 7, 0.3, 5);
+        SharedBoard shared = SharedBoard.create(boardFile(), new Board(13, 7, 0.3, 5));
+        assertEquals(board.toString(), shared.toString());
+
+        Random random = new Random(6);
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(13);
+            int y = random.nextInt(7);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(board.dig(x, y), shared.dig(x, y));
+                break;
+            case 1:
+                assertEquals(board.flag(x, y), shared.flag(x, y));
+                break;
+            default:
+                assertEquals(board.deflag(x, y), shared.deflag(x, y));
+            }
+            assertEquals(board.status(x, y), shared.status(x, y));
+            assertEquals(board.getVersion(), shared.getVersion());
+        }
+        assertEquals(board.toString(), shared.toString());
+    }
+
+    @Test
+    public void testBoomNextToOpening() throws IOException {
+        int[][] map = { { 0, 0, 1, 1 } };
+        SharedBoard shared = SharedBoard.create(boardFile(), new Board(map));
+        assertFalse(shared.dig(1, 0));
+        assertTrue(shared.dig(2, 0));
+        assertEquals("-   1 -\n", shared.toString());
+        assertEquals(2, shared.getVersion());
+    }
+
+    @Test
+    public void testTwoMappingsPlayedConcurrently() throws Exception {
+        File file = boardFile();
+        SharedBoard first = SharedBoard.create(file, new Board(61, 47, 0.15, 8));
+        SharedBoard second = SharedBoard.open(file);
+        final SharedBoard[] mappings = { first, second };
+        final List<int[]> digs = new ArrayList<>();
+        Random random = new Random(9);
+        for (int i = 0; i < 8; i++) {
+            int[] thread = new int[400];
+            for (int k = 0; k < thread.length; k++)
+                thread[k] = random.nextInt(61 * 47);
+            digs.add(thread);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < digs.size(); t++) {
+            final SharedBoard mapping = mappings[t % 2];
+            final int[] cells = digs.get(t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int cell : cells) {
+                        int x = cell % 61;
+                        int y = cell / 61;
+                        mapping.dig(x, y);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // the final board depends on the order of the digs, but the bombs left
+        // do not, and every dug location must count them
+        SharedBoard original = SharedBoard.create(boardFile(), new Board(61, 47, 0.15, 8));
+        boolean[] dug = new boolean[61 * 47];
+        for (int[] cells : digs)
+            for (int cell : cells)
+                dug[cell] = true;
+        for (int y = 0; y < 47; y++) {
+            for (int x = 0; x < 61; x++) {
+                assertEquals(original.mineAt(x, y) && !dug[y * 61 + x], first.mineAt(x, y));
+                char status = first.status(x, y);
+                assertTrue(status != '-' || !dug[y * 61 + x]);
+                if (status != '-' && status != 'F')
+                    assertEquals(countMines(first, x, y), Character.digit(status, 10));
+            }
+        }
+        assertEquals(first.toString(), second.toString());
+        assertEquals(first.getVersion(), second.getVersion());
+    }
+
+    /*
+     * Adds delta to the long at offset in file, behind the back of its
+     * mappings, as another process could.
+     */
+    private static void addToCounter(File file, int offset, long delta) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer counter = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(counter, offset);
+            counter.putLong(0, counter.getLong(0) + delta).clear();
+            channel.write(counter, offset);
+        }
+    }
+
+    /**
+     * Maps the shared board file args[0], starts an operation in this
+     * process's slot and exits without finishing it, as a process dying part
+     * way through one would.
+     *
+     * @param args the shared board file
+     * @throws IOException if the file cannot be mapped
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        SharedBoard board = SharedBoard.open(file);
+        addToCounter(file, board.getSlot() + SharedBoard.STARTED, 1);
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testOperationInProgress() throws IOException {
+        File file = boardFile();
+        SharedBoard board = SharedBoard.create(file, new Board(6, 5, 0.0));
+        addToCounter(file, board.getSlot() + SharedBoard.STARTED, 1);
+        // this process is alive, so its operation may still change the board
+        assertNotSame(board.snapshot(), board.snapshot());
+        assertEquals(0, board.snapshot().getVersion());
+
+        addToCounter(file, board.getSlot() + SharedBoard.FINISHED, 1);
+        board.flag(2, 3);
+        BoardSnapshot after = board.snapshot();
+        assertEquals(1, after.getVersion());
+        assertEquals('F', after.status(2, 3));
+        assertSame(after, board.snapshot());
+    }
+
+    @Test(timeout = 60000)
+    public void testProcessDiesMidOperation() throws Exception {
+        File file = boardFile();
+        SharedBoard board = SharedBoard.create(file, new Board(6, 5, 0.0));
+        long launched = System.currentTimeMillis();
+        Process child = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), SharedBoardTest.class.getName(),
+                file.getPath()).inheritIO().start();
+        assertEquals(0, child.waitFor());
+
+        // the child's heartbeat is still recent, so its operation is not yet
+        // taken to be abandoned
+        if (System.currentTimeMillis() - launched < SharedBoard.STALE_MILLIS)
+            assertNotSame(board.snapshot(), board.snapshot());
+
+        Thread.sleep(SharedBoard.STALE_MILLIS);
+        board.flag(2, 3);
+        BoardSnapshot after = board.snapshot();
+        assertEquals(1, after.getVersion());
+        assertEquals('F', after.status(2, 3));
+        assertSame(after, board.snapshot());
+    }
+
+    @Test
+    public void testEverySlotTaken() throws IOException {
+        File file = boardFile();
+        List<SharedBoard> mappings = new ArrayList<>();
+        mappings.add(SharedBoard.create(file, new Board(3, 3, 0.0)));
+        while (mappings.size() < SharedBoard.SLOTS)
+            mappings.add(SharedBoard.open(file));
+        try {
+            SharedBoard.open(file);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        mappings.get(0).release();
+        SharedBoard last = SharedBoard.open(file);
+        // releasing again must not free the slot now taken by last
+        mappings.get(0).release();
+        try {
+            SharedBoard.open(file);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(mappings.get(0).getSlot(), last.getSlot());
+        assertTrue(last.flag(1, 1));
+        assertEquals('F', mappings.get(1).status(1, 1));
+        for (SharedBoard mapping : mappings.subList(1, mappings.size()))
+            mapping.release();
+        last.release();
+    }
+
+    @Test
+    public void testCreateExistingFile() throws IOException {
+        File file = boardFile();
+        SharedBoard.create(file, new Board(2, 2, 0.0));
+        try {
+            SharedBoard.create(file, new Board(3, 3, 0.0));
+            fail("expected FileAlreadyExistsException");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+        assertEquals(2, SharedBoard.open(file).getWidth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpenOtherFile() throws IOException {
+        File file = boardFile();
+        new Board(4, 4, 0.5, 1).save(file, true);
+        SharedBoard.open(file);
+    }
+}
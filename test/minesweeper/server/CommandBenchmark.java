@@ -0,0 +1,79 @@
+package minesweeper.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Microbenchmark comparing the bytes allocated and the time taken to decode a
+ * request the way handleRequest used to, with a regex, split and parseInt on
+ * a String, against Command decoding the same request in place from its
+ * bytes. Run with no arguments; it is not part of the test suite.
+ */
+public class CommandBenchmark {
+
+    private static final String REGEX = "(look)|(help)|(bye)|"
+            + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+    private static final String[] REQUESTS = { "look", "dig 12 34", "flag 5 6", "deflag 5 6", "help", "dig x 1" };
+    private static final int ROUNDS = 5;
+    private static final int DECODES = 2_000_000;
+
+    private static long sink = 0;
+
+    /*
+     * Decodes a request as handleRequest did before Command, folding the
+     * result into sink.
+     */
+    private static void decodeWithRegex(byte[] line) {
+        String input = new String(line, StandardCharsets.UTF_8);
+        if (!input.matches(REGEX)) {
+            sink += 1;
+            return;
+        }
+        String[] tokens = input.split(" ");
+        sink += tokens[0].length();
+        if (tokens.length == 3)
+            sink += Integer.parseInt(tokens[1]) + Integer.parseInt(tokens[2]);
+    }
+
+    private static void decodeWithCommand(Command command, byte[] line) {
+        command.decode(line, 0, line.length);
+        sink += command.getKind().ordinal() + command.getX() + command.getY();
+    }
+
+    /*
+     * Returns the bytes allocated by this thread so far, as counted by the
+     * HotSpot thread bean.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void measure(String name, boolean regex, byte[][] lines) {
+        Command command = new Command();
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < DECODES; i++) {
+                byte[] line = lines[i % lines.length];
+                if (regex)
+                    decodeWithRegex(line);
+                else
+                    decodeWithCommand(command, line);
+            }
+            long nanos = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            System.out.printf("%-8s round %d: %8.1f bytes/request %8.1f ns/request%n", name, round,
+                    (double) bytes / DECODES, (double) nanos / DECODES);
+        }
+    }
+
+    public static void main(String[] args) {
+        byte[][] lines = new byte[REQUESTS.length][];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = REQUESTS[i].getBytes(StandardCharsets.UTF_8);
+        measure("regex", true, lines);
+        measure("command", false, lines);
+        System.out.println(sink == 42 ? "" : "done");
+    }
+}
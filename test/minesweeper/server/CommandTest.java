@@ -0,0 +1,114 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import minesweeper.server.Command.Kind;
+
+/**
+ * Tests for Command.
+ */
+public class CommandTest {
+
+    /*
+     * Testing strategy:
+     *
+     * Partition the line: each kind of command; coordinates positive, zero,
+     * negative, "-0", with leading zeros, too large for an int; invalid by
+     * case, extra or missing spaces, a missing or extra coordinate, a sign
+     * without digits, a non-ASCII character, empty.
+     *
+     * Partition the source: a string, the whole of a byte array, a range in
+     * the middle of a byte array.
+     *
+     * Partition the use: a fresh command, a command reused after a located
+     * request and after an invalid one.
+     */
+
+    // the grammar as the server used to check it
+    private static final Pattern GRAMMAR = Pattern
+            .compile("(look)|(help)|(bye)|(subscribe)|(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)");
+
+    private static final String[] LINES = { "look", "help", "bye", "dig 3 4", "flag 0 0", "deflag 12 7",
+            "dig -1 -20", "flag -0 5", "dig 007 08", "Look", "LOOK", "look ", " look", "dig  3 4", "dig 3  4",
+            "dig 3 4 ", "dig 3", "dig 3 4 5", "dig - 4", "dig 3 -", "dig", "dig ", "flag3 4", "deflag 1 x",
+            "dig 3\u00e9 4", "looks", "by", "", "help me", "dig 1 2\n",
+            "subscribe", "subscribe ", "Subscribe" };
+
+    /*
+     * Decodes line from a string, its bytes, and its bytes in the middle of a
+     * larger array, checking all three agree, and returns one of them.
+     */
+    private static Command decode(Command command, String line) {
+        String fromString = command.decode(line).toString();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        String fromBytes = command.decode(bytes, 0, bytes.length).toString();
+        byte[] padded = ("dig 1 1" + line + "look").getBytes(StandardCharsets.UTF_8);
+        command.decode(padded, 7, 7 + bytes.length);
+        assertEquals(line, fromString, fromBytes);
+        assertEquals(line, fromString, command.toString());
+        return command;
+    }
+
+    @Test
+    public void testMatchesGrammar() {
+        Command command = new Command();
+        for (String line : LINES) {
+            decode(command, line);
+            boolean valid = GRAMMAR.matcher(line).matches();
+            assertEquals(line, valid, command.getKind() != Kind.INVALID);
+            if (valid)
+                assertEquals(line, line.split(" ")[0], command.getKind().name().toLowerCase());
+        }
+    }
+
+    @Test
+    public void testCoordinates() {
+        Command command = decode(new Command(), "deflag 12 7");
+        assertEquals(Kind.DEFLAG, command.getKind());
+        assertEquals(12, command.getX());
+        assertEquals(7, command.getY());
+
+        decode(command, "dig -1 -20");
+        assertEquals(Kind.DIG, command.getKind());
+        assertEquals(-1, command.getX());
+        assertEquals(-20, command.getY());
+
+        decode(command, "flag 007 -0");
+        assertEquals(Kind.FLAG, command.getKind());
+        assertEquals(7, command.getX());
+        assertEquals(0, command.getY());
+    }
+
+    @Test
+    public void testCoordinatesSaturate() {
+        Command command = decode(new Command(), "dig 2147483647 -2147483648");
+        assertEquals(Integer.MAX_VALUE, command.getX());
+        assertEquals(Integer.MIN_VALUE, command.getY());
+
+        decode(command, "flag 99999999999999999999999 -2147483649");
+        assertEquals(Kind.FLAG, command.getKind());
+        assertEquals(Integer.MAX_VALUE, command.getX());
+        assertEquals(Integer.MIN_VALUE, command.getY());
+    }
+
+    @Test
+    public void testReuseClearsCoordinates() {
+        Command command = decode(new Command(), "dig 3 4");
+        decode(command, "look");
+        assertEquals(Kind.LOOK, command.getKind());
+        assertEquals(0, command.getX());
+        assertEquals(0, command.getY());
+
+        decode(command, "dig 3 x");
+        assertEquals(Kind.INVALID, command.getKind());
+        assertEquals(0, command.getX());
+        decode(command, "flag 5 6");
+        assertEquals(Kind.FLAG, command.getKind());
+        assertEquals(6, command.getY());
+    }
+}
@@ -1,15 +1,31 @@
 package minesweeper.server;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -30,11 +46,48 @@ public class MinesweeperServerTest {
      * 2) Test with a client disconnecting with the server to see if the game still
      * goes on.
      * 
+     * 3) Test the NIO mode: hello counts, a request split across writes and two
+     * sent in one write, \r\n and \n line endings, bye, and the disconnect
+     * after a BOOM outside debug mode.
+     * 
+     * 4) Test blocking I/O on virtual threads, which are platform threads
+     * before Java 21: hello counts, requests, bye.
+     * 
+     * 5) Test a client pipelining many requests before reading any response,
+     * then closing its side of the connection: every response arrives, in
+     * order, before the server closes.
+     * 
+     * 6) Test the binary protocol next to a text client on the same board: the
+     * shared player count, boards that agree with look, booms in debug mode,
+     * an unknown opcode, and requests pipelined with bye.
+     * 
+     * 7) Test the boards shared between clients, in blocking and NIO mode: a
+     * client looking after another changed the board sees the change, not the
+     * board encoded before it, and requests pipelined with bye are all
+     * answered before the connection closes.
+     * 
+     * 8) Test many clients connecting and disconnecting at once, in blocking
+     * and NIO mode, some saying bye and some just closing: once they have all
+     * gone, the next client is counted as the only player.
+     * 
+     * 9) Test subscribe, in blocking and NIO mode and over the binary
+     * protocol: the subscriber is pushed an update for a single change, and
+     * applying the updates pushed for a burst of changes, some undoing others,
+     * brings its board to what look shows.
+     * 
+     * 10) Test a client sending many more requests than the server holds for
+     * it at once while reading the responses slowly: every response still
+     * arrives, in order.
+     * 
+     * 11) Test a server playing a chunked board: look shows the whole board,
+     * larger than the chunks it is held in, and sees flags at the far corner.
+     * 
      */
 
     private static MinesweeperServer getServer(boolean debug) {
         try {
-            return new MinesweeperServer(debug);
+            return new MinesweeperServer(new MinesweeperServer.Options(MinesweeperServer.createBoard(Optional.empty(),
+                    10, 10, OptionalInt.empty(), OptionalLong.empty())).port(DEFAULT_PORT).debug(debug));
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -125,6 +178,17 @@ public class MinesweeperServerTest {
 
         writer1.println("dig 0 0");
         writer1.flush();
+        try {
+            // the clients are served in parallel, so wait for the dig to be
+            // answered before the other client looks
+            if (!read1.readLine().equals("BOOM!")) {
+                for (int row = 1; row < 10; row++)
+                    read1.readLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            assert false;
+        }
         writer2.println("look");
         writer2.flush();
         try {
@@ -149,4 +213,490 @@ public class MinesweeperServerTest {
         }
     }
 
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return new Socket(LOCALHOST, port);
+            } catch (ConnectException e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /*
+     * Starts a server on a random port with a 3x3 board of bombs and the given
+     * options, returning the port.
+     */
+    private static int startServer(String... options) {
+        List<String> args = new ArrayList<>(Arrays.asList("--size", "3,3", "--mines", "9"));
+        args.addAll(Arrays.asList(options));
+        return startMain(args);
+    }
+
+    /*
+     * Starts a server on a random port with the given arguments, returning the
+     * port.
+     */
+    private static int startMain(List<String> options) {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        final List<String> args = new ArrayList<>(Arrays.asList("--port", Integer.toString(port)));
+        args.addAll(options);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MinesweeperServer.main(args.toArray(new String[0]));
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return port;
+    }
+
+    @Test(timeout = 30000)
+    public void testNioMode() throws IOException, InterruptedException {
+        int port = startServer("--io", "nio");
+
+        Socket first = connect(port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        PrintWriter out1 = new PrintWriter(new OutputStreamWriter(first.getOutputStream()), true);
+        assertTrue(in1.readLine().contains("Players: 1 including you"));
+
+        Socket second = connect(port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        PrintWriter out2 = new PrintWriter(new OutputStreamWriter(second.getOutputStream()), true);
+        assertTrue(in2.readLine().contains("Players: 2 including you"));
+
+        out1.print("fl");
+        out1.flush();
+        Thread.sleep(50);
+        out1.print("ag 1 1\r\nlook\n");
+        out1.flush();
+        for (String expected : new String[] { "- - -", "- F -", "- - -", "- - -", "- F -", "- - -" })
+            assertEquals(expected, in1.readLine());
+
+        out2.println("bye");
+        assertNull(in2.readLine());
+        out1.println("dig 0 0");
+        assertEquals("BOOM!", in1.readLine());
+        assertNull(in1.readLine());
+
+        Socket third = connect(port);
+        BufferedReader in3 = new BufferedReader(new InputStreamReader(third.getInputStream()));
+        assertTrue(in3.readLine().contains("Players: 1 including you"));
+        third.close();
+        first.close();
+        second.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testVirtualThreads() throws IOException, InterruptedException {
+        int port = startServer("--threads", "virtual");
+
+        Socket first = connect(port);
+        BufferedReader in1 = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        PrintWriter out1 = new PrintWriter(new OutputStreamWriter(first.getOutputStream()), true);
+        assertTrue(in1.readLine().contains("Players: 1 including you"));
+
+        Socket second = connect(port);
+        BufferedReader in2 = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        PrintWriter out2 = new PrintWriter(new OutputStreamWriter(second.getOutputStream()), true);
+        assertTrue(in2.readLine().contains("Players: 2 including you"));
+
+        out2.println("flag 2 0");
+        for (String expected : new String[] { "- - F", "- - -", "- - -" })
+            assertEquals(expected, in2.readLine());
+        out1.println("look");
+        for (String expected : new String[] { "- - F", "- - -", "- - -" })
+            assertEquals(expected, in1.readLine());
+
+        out1.println("bye");
+        assertNull(in1.readLine());
+        first.close();
+        second.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testPipelinedRequests() throws IOException, InterruptedException {
+        int port = startServer();
+
+        Socket socket = connect(port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+        assertTrue(in.readLine().contains("Players: 1 including you"));
+        for (int i = 0; i < 200; i++) {
+            out.println("flag " + (i % 3) + " 1");
+            out.println("deflag " + (i % 3) + " 1");
+        }
+        out.flush();
+        socket.shutdownOutput();
+
+        for (int i = 0; i < 200; i++) {
+            String flagged = i % 3 == 0 ? "F - -" : i % 3 == 1 ? "- F -" : "- - F";
+            for (String expected : new String[] { "- - -", flagged, "- - -", "- - -", "- - -", "- - -" })
+                assertEquals(expected, in.readLine());
+        }
+        assertNull(in.readLine());
+        socket.close();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while (value >= 0x80) {
+            out.write(value | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80)
+                return value;
+        }
+    }
+
+    /*
+     * Returns the frame for a request with the given opcode and coordinates.
+     */
+    private static byte[] frame(int opcode, int... coordinates) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(opcode);
+        for (int coordinate : coordinates)
+            writeVarint(body, coordinate);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writeVarint(frame, body.size());
+        frame.write(body.toByteArray(), 0, body.size());
+        return frame.toByteArray();
+    }
+
+    /*
+     * Reads a response frame and returns its opcode and body.
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[readVarint(in)];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /*
+     * Returns the body of a response frame after its opcode, checking the
+     * opcode.
+     */
+    private static DataInputStream body(byte[] frame, int opcode) {
+        assertEquals(opcode, frame[0] & 0xFF);
+        return new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+    }
+
+    /*
+     * Renders a board frame as look does.
+     */
+    private static String render(byte[] frame) throws IOException {
+        DataInputStream body = body(frame, 0x81);
+        int width = readVarint(body);
+        int height = readVarint(body);
+        StringBuilder board = new StringBuilder();
+        int packed = 0;
+        for (int cell = 0; cell < width * height; cell++) {
+            if (cell % 2 == 0)
+                packed = body.readUnsignedByte();
+            int value = cell % 2 == 0 ? packed >> 4 : packed & 0xF;
+            board.append(value == 9 ? '-' : value == 10 ? 'F' : value == 0 ? ' ' : (char) ('0' + value));
+            board.append(cell % width == width - 1 ? '\n' : ' ');
+        }
+        assertEquals(-1, body.read());
+        return board.toString();
+    }
+
+    private static String readLook(BufferedReader in, int height) throws IOException {
+        StringBuilder board = new StringBuilder();
+        for (int row = 0; row < height; row++)
+            board.append(in.readLine()).append('\n');
+        return board.toString();
+    }
+
+    @Test(timeout = 30000)
+    public void testBinaryProtocol() throws IOException, InterruptedException {
+        int binaryPort = 40000 + new Random().nextInt(1 << 14);
+        int port = startServer("--debug", "--size", "5,4", "--mines", "6", "--seed", "3", "--binary-port",
+                Integer.toString(binaryPort));
+
+        Socket text = connect(port);
+        BufferedReader textIn = new BufferedReader(new InputStreamReader(text.getInputStream()));
+        PrintWriter textOut = new PrintWriter(new OutputStreamWriter(text.getOutputStream()), true);
+        assertTrue(textIn.readLine().contains("Players: 1 including you"));
+
+        Socket binary = connect(binaryPort);
+        DataInputStream in = new DataInputStream(binary.getInputStream());
+        OutputStream out = binary.getOutputStream();
+        DataInputStream hello = body(readFrame(in), 0x80);
+        assertEquals(2, readVarint(hello));
+        assertEquals(5, readVarint(hello));
+        assertEquals(4, readVarint(hello));
+
+        out.write(frame(0x03, 1, 1));
+        String flagged = render(readFrame(in));
+        assertEquals("- - - - -\n- F - - -\n- - - - -\n- - - - -\n", flagged);
+        textOut.println("look");
+        assertEquals(flagged, readLook(textIn, 4));
+
+        int booms = 0;
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 5; x++) {
+                out.write(frame(0x02, x, y));
+                byte[] response = readFrame(in);
+                if ((response[0] & 0xFF) == 0x82) {
+                    booms++;
+                    continue;
+                }
+                textOut.println("look");
+                assertEquals(readLook(textIn, 4), render(response));
+            }
+        }
+        assertTrue(booms > 0);
+
+        out.write(frame(0x7F));
+        byte[] help = readFrame(in);
+        assertEquals(0x83, help[0] & 0xFF);
+        assertTrue(new String(help, 1, help.length - 1, StandardCharsets.UTF_8).startsWith("Following commands"));
+
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        pipelined.write(frame(0x04, 1, 1), 0, 4);
+        pipelined.write(frame(0x06), 0, 2);
+        out.write(pipelined.toByteArray());
+        String deflagged = render(readFrame(in));
+        assertEquals(-1, in.read());
+        textOut.println("look");
+        assertEquals(deflagged, readLook(textIn, 4));
+
+        Socket another = connect(port);
+        BufferedReader anotherIn = new BufferedReader(new InputStreamReader(another.getInputStream()));
+        assertTrue(anotherIn.readLine().contains("Players: 2 including you"));
+        another.close();
+        text.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testSharedBoardResponses() throws IOException, InterruptedException {
+        for (String io : new String[] { "blocking", "nio" }) {
+            int port = startServer("--io", io);
+
+            Socket first = connect(port);
+            BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream()));
+            PrintWriter firstOut = new PrintWriter(new OutputStreamWriter(first.getOutputStream()), true);
+            assertTrue(firstIn.readLine().contains("Players: 1 including you"));
+            Socket second = connect(port);
+            BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream()));
+            PrintWriter secondOut = new PrintWriter(new OutputStreamWriter(second.getOutputStream()), true);
+            assertTrue(secondIn.readLine().contains("Players: 2 including you"));
+
+            firstOut.println("look");
+            assertEquals("- - -\n- - -\n- - -\n", readLook(firstIn, 3));
+            secondOut.println("flag 0 0");
+            assertEquals("F - -\n- - -\n- - -\n", readLook(secondIn, 3));
+            firstOut.println("look");
+            assertEquals("F - -\n- - -\n- - -\n", readLook(firstIn, 3));
+            firstOut.println("deflag 0 0");
+            assertEquals("- - -\n- - -\n- - -\n", readLook(firstIn, 3));
+            secondOut.println("look");
+            assertEquals("- - -\n- - -\n- - -\n", readLook(secondIn, 3));
+
+            second.getOutputStream().write("look\nflag 2 2\nlook\nbye\nlook\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("- - -\n- - -\n- - -\n", readLook(secondIn, 3));
+            assertEquals("- - -\n- - -\n- - F\n", readLook(secondIn, 3));
+            assertEquals("- - -\n- - -\n- - F\n", readLook(secondIn, 3));
+            assertNull(secondIn.readLine());
+            second.close();
+            first.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSessionChurn() throws IOException, InterruptedException {
+        for (String io : new String[] { "blocking", "nio" }) {
+            final int port = startServer("--io", io);
+            connect(port).close();
+
+            List<Thread> clients = new ArrayList<>();
+            final List<Throwable> failures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final boolean bye = i % 2 == 0;
+                Thread client = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 50; j++) {
+                                Socket socket = connect(port);
+                                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+                                assertTrue(in.readLine().startsWith("Welcome"));
+                                out.println(bye ? "bye" : "look");
+                                if (bye)
+                                    assertNull(in.readLine());
+                                socket.close();
+                            }
+                        } catch (Throwable t) {
+                            synchronized (failures) {
+                                failures.add(t);
+                            }
+                        }
+                    }
+                });
+                client.start();
+                clients.add(client);
+            }
+            for (Thread client : clients)
+                client.join();
+            assertEquals(new ArrayList<Throwable>(), failures);
+
+            // the server notices the last clients closing in its own time
+            for (int attempt = 0;; attempt++) {
+                Socket socket = connect(port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String hello = in.readLine();
+                socket.close();
+                if (hello.contains("Players: 1 including you"))
+                    break;
+                assertTrue(hello, attempt < 50);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /*
+     * Applies a text protocol update to board, as rendered by look.
+     */
+    private static String applyUpdate(String board, int width, String update) {
+        String[] words = update.split(" ");
+        assertEquals("update", words[0]);
+        char[] cells = board.toCharArray();
+        for (int i = 1; i < words.length; i += 3) {
+            int cell = Integer.parseInt(words[i + 1]) * width + Integer.parseInt(words[i]);
+            char status = words[i + 2].charAt(0);
+            cells[2 * cell] = status == '0' ? ' ' : status;
+        }
+        return new String(cells);
+    }
+
+    /*
+     * Reads a text protocol push and applies it to board, as rendered by look:
+     * either an update or a whole board.
+     */
+    private static String readPush(BufferedReader in, String board, int width, int height) throws IOException {
+        String line = in.readLine();
+        if (line.equals("board")) {
+            return readLook(in, height);
+        }
+        return applyUpdate(board, width, line);
+    }
+
+    @Test(timeout = 30000)
+    public void testSubscribe() throws IOException, InterruptedException {
+        for (String io : new String[] { "blocking", "nio" }) {
+            int binaryPort = 40000 + new Random().nextInt(1 << 14);
+            int port = startServer("--io", io, "--debug", "--size", "5,4", "--mines", "6", "--seed", "3",
+                    "--binary-port", Integer.toString(binaryPort));
+
+            Socket subscriber = connect(port);
+            BufferedReader subscriberIn = new BufferedReader(new InputStreamReader(subscriber.getInputStream()));
+            PrintWriter subscriberOut = new PrintWriter(new OutputStreamWriter(subscriber.getOutputStream()), true);
+            assertTrue(subscriberIn.readLine().startsWith("Welcome"));
+            Socket player = connect(port);
+            BufferedReader playerIn = new BufferedReader(new InputStreamReader(player.getInputStream()));
+            PrintWriter playerOut = new PrintWriter(new OutputStreamWriter(player.getOutputStream()), true);
+            assertTrue(playerIn.readLine().startsWith("Welcome"));
+            Socket binary = connect(binaryPort);
+            DataInputStream binaryIn = new DataInputStream(binary.getInputStream());
+            body(readFrame(binaryIn), 0x80);
+
+            subscriberOut.println("subscribe");
+            String board = readLook(subscriberIn, 4);
+            assertEquals("- - - - -\n- - - - -\n- - - - -\n- - - - -\n", board);
+            binary.getOutputStream().write(frame(0x07));
+            assertEquals(board, render(readFrame(binaryIn)));
+
+            playerOut.println("flag 1 1");
+            readLook(playerIn, 4);
+            assertEquals("update 1 1 F", subscriberIn.readLine());
+            DataInputStream update = body(readFrame(binaryIn), 0x84);
+            assertEquals(1, readVarint(update));
+            assertEquals(1, readVarint(update));
+            assertEquals(1, readVarint(update));
+            assertEquals(10, update.readUnsignedByte());
+            assertEquals(-1, update.read());
+            board = applyUpdate(board, 5, "update 1 1 F");
+
+            playerOut.println("flag 2 2");
+            playerOut.println("flag 3 3");
+            playerOut.println("deflag 1 1");
+            playerOut.println("deflag 2 2");
+            playerOut.println("dig 4 0");
+            String expected = null;
+            for (int i = 0; i < 5; i++)
+                expected = readLook(playerIn, 4);
+            while (!board.equals(expected))
+                board = readPush(subscriberIn, board, 5, 4);
+
+            playerOut.println("look");
+            assertEquals(expected, readLook(playerIn, 4));
+            subscriber.close();
+            player.close();
+            binary.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testManyPendingRequests() throws IOException, InterruptedException {
+        int port = startServer();
+        Socket socket = connect(port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+        assertTrue(in.readLine().contains("Players: 1 including you"));
+
+        final int requests = 5000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < requests; i++)
+                    out.println(i % 2 == 0 ? "flag 1 1" : "deflag 1 1");
+                out.flush();
+            }
+        });
+        writer.start();
+        // let the requests pile up before reading any response
+        Thread.sleep(500);
+        for (int i = 0; i < requests; i++) {
+            assertEquals("- - -", in.readLine());
+            assertEquals(i % 2 == 0 ? "- F -" : "- - -", in.readLine());
+            assertEquals("- - -", in.readLine());
+        }
+        writer.join();
+        socket.close();
+    }
+
+    @Test(timeout = 30000)
+    public void testChunkedBoard() throws IOException, InterruptedException {
+        File chunks = Files.createTempDirectory("chunks").toFile();
+        int port = startMain(Arrays.asList("--size", "130,70", "--seed", "4", "--chunked", chunks.getPath()));
+        Socket socket = connect(port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        assertTrue(in.readLine().contains("Board: 130 columns by 70 rows"));
+
+        out.println("look");
+        String untouched = readLook(in, 70);
+        assertEquals(2 * 130 * 70, untouched.length());
+        assertTrue(untouched.matches("((- ){129}-\n){70}"));
+
+        out.println("flag 129 69");
+        String flagged = readLook(in, 70);
+        assertTrue(flagged.endsWith("- F\n"));
+        assertEquals(untouched.substring(0, untouched.length() - 2), flagged.substring(0, flagged.length() - 2));
+        out.println("bye");
+        assertNull(in.readLine());
+        socket.close();
+    }
 }
@@ -0,0 +1,96 @@
+package minesweeper.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for SerialExecutor.
+ */
+public class SerialExecutorTest {
+
+    /*
+     * Testing strategy:
+     *
+     * Partition the tasks: all return normally, one throws a RuntimeException,
+     * one throws an Error.
+     *
+     * Partition the number of tasks: fewer than one batch, more than one.
+     */
+
+    private static final int TASKS = 200;
+
+    /*
+     * Runs TASKS tasks on a serial executor, the one numbered failing thrown
+     * by fail, and returns the numbers of the tasks that ran, in the order
+     * they ran.
+     */
+    private static List<Integer> run(int tasks, final int failing, final Runnable fail) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        SerialExecutor executor = new SerialExecutor(pool);
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < tasks; i++) {
+            final int task = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(task);
+                    if (task == failing)
+                        fail.run();
+                }
+            });
+        }
+        // wait for every task to run, or for a lane that stalled to time out
+        for (int waited = 0; ran.size() < tasks && waited < 100; waited++)
+            Thread.sleep(50);
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return ran;
+    }
+
+    private static List<Integer> upTo(int tasks) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < tasks; i++)
+            expected.add(i);
+        return expected;
+    }
+
+    @Test
+    public void testInOrder() throws InterruptedException {
+        assertEquals(upTo(TASKS), run(TASKS, -1, null));
+        assertEquals(upTo(3), run(3, -1, null));
+    }
+
+    @Test
+    public void testRuntimeException() throws InterruptedException {
+        assertEquals(upTo(TASKS), run(TASKS, 10, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by the test");
+            }
+        }));
+    }
+
+    @Test
+    public void testError() throws InterruptedException {
+        assertEquals(upTo(TASKS), run(TASKS, 10, new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("expected by the test");
+            }
+        }));
+        assertEquals(upTo(3), run(3, 2, new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("expected by the test");
+            }
+        }));
+    }
+}